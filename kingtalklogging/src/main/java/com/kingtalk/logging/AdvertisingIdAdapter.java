@@ -21,7 +21,7 @@ class AdvertisingIdAdapter {
     }
 
     static void setAdvertisingId(final Context context, final LoggingStore store, final DeviceId deviceId) {
-        new Thread(() -> {
+        SdkScheduler.shared().execute(SdkScheduler.Lane.IO, () -> {
             try {
                 deviceId.setId(DeviceId.Type.ADVERTISING_ID, getAdvertisingId(context));
             } catch (Throwable t) {
@@ -42,7 +42,7 @@ class AdvertisingIdAdapter {
                     Log.e(TAG, "Couldn't get advertising ID", t);
                 }
             }
-        }).start();
+        });
     }
 
     private static String getAdvertisingId(final Context context) throws Throwable{
@@ -82,7 +82,7 @@ class AdvertisingIdAdapter {
      * Cache advertising ID for attribution
      */
     static void cacheAdvertisingID(final Context context, final LoggingStore store) {
-        new Thread(() -> {
+        SdkScheduler.shared().execute(SdkScheduler.Lane.IO, () -> {
             try {
                 if(!isLimitAdTrackingEnabled(context)){
                     String adId = getAdvertisingId(context);
@@ -109,6 +109,6 @@ class AdvertisingIdAdapter {
                     Log.e(TAG, "Couldn't get advertising ID, while caching", t);
                 }
             }
-        }).start();
+        });
     }
 }
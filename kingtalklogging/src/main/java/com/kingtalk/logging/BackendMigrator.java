@@ -0,0 +1,115 @@
+package com.kingtalk.logging;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves what the default {@link PreferencesStorageBackend} holds into another backend, for apps
+ * that select {@link StorageType#FILE} or {@link StorageType#SQLITE} on an existing install.
+ *
+ * The values are moved right away, before the SDK reads the device ID or anything else. A value
+ * is only copied if the new backend has none of its own, and it is removed from the preferences
+ * once the new backend has committed it. The queues follow on the io lane of the
+ * {@link SdkScheduler}, record by record: each record is acknowledged in the old queue right
+ * after it was appended to the new one, so a move that is cut short repeats at most one record.
+ * The old queue files are deleted at the end.
+ *
+ * The queues of an SDK version older than the backends are moved by {@link LegacyQueueMigrator}.
+ */
+class BackendMigrator implements Runnable {
+    private static final String[] QUEUES = {
+            StorageBackend.QUEUE_CONNECTIONS, StorageBackend.QUEUE_EVENTS, StorageBackend.QUEUE_DEAD_LETTERS};
+    private static final int CHUNK_RECORDS = 50;
+
+    private final PreferencesStorageBackend from_;
+    private final StorageBackend to_;
+
+    private BackendMigrator(final PreferencesStorageBackend from, final StorageBackend to) {
+        from_ = from;
+        to_ = to;
+    }
+
+    /**
+     * Moves the stored values into the given backend and starts moving the queues.
+     */
+    static void moveFromPreferences(final Context context, final StorageBackend to) {
+        final BackendMigrator migrator = new BackendMigrator(new PreferencesStorageBackend(context), to);
+        migrator.moveValues();
+        if (migrator.from_.queueDirectory().isDirectory()) {
+            SdkScheduler.shared().execute(SdkScheduler.Lane.IO, migrator);
+        }
+    }
+
+    private void moveValues() {
+        final Map<String, Object> stored = from_.getAll();
+        final Map<String, Object> current = to_.getAll();
+        final Map<String, Object> copied = new HashMap<>();
+        final Map<String, Object> removed = new HashMap<>();
+        for (Map.Entry<String, Object> entry : stored.entrySet()) {
+            final String key = entry.getKey();
+            if (LegacyQueueMigrator.isLegacyKey(key)) {
+                continue;
+            }
+            if (!current.containsKey(key)) {
+                copied.put(key, entry.getValue());
+            }
+            // the messaging module reads its consent from the preferences as well
+            if (!PreferencesStorageBackend.CONSENT_GCM_PREFERENCES.equals(key)) {
+                removed.put(key, null);
+            }
+        }
+        if (!copied.isEmpty()) {
+            to_.commit(copied);
+        }
+        if (!removed.isEmpty()) {
+            from_.commit(removed);
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.d(Logging.TAG, "Moved " + copied.size() + " stored values into the " + Logging.getStorageType() + " storage backend");
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (String name : QUEUES) {
+                moveQueue(from_.queue(name), to_.queue(name));
+            }
+            deleteRecursively(from_.queueDirectory());
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.d(Logging.TAG, "Moved the stored queues into the " + Logging.getStorageType() + " storage backend");
+            }
+        } catch (IOException e) {
+            // the rest stays in the old queues, the next launch continues with it
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.w(Logging.TAG, "Could not move the stored queues", e);
+            }
+        }
+    }
+
+    private static void moveQueue(final StorageBackend.RecordQueue from, final StorageBackend.RecordQueue to) throws IOException {
+        List<StorageBackend.Record> records;
+        while (!(records = from.peek(CHUNK_RECORDS)).isEmpty()) {
+            for (StorageBackend.Record record : records) {
+                to.append(record.data);
+                from.commit(record.seq);
+            }
+        }
+    }
+
+    private static void deleteRecursively(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,43 @@
+package com.kingtalk.logging;
+
+/**
+ * Keeps the parameters every request shares out of the stored request records.
+ *
+ * app_key, tz, sdk_version and sdk_name are the same for every request until the app is set up
+ * with another key, the SDK is updated or the time zone changes. They are stored once per
+ * generation next to the queue, and a record only holds the generation it belongs to followed by
+ * the other parameters, see {@link Request#toRecord(long)}. They are put back in front when the
+ * request is read.
+ */
+class CommonRequestParams {
+    private static final String[] KEYS = {"app_key", "tz", "sdk_version", "sdk_name"};
+
+    private CommonRequestParams() {}
+
+    static boolean isCommon(final String key) {
+        for (String common : KEYS) {
+            if (common.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Appends the common parameters of a request in a fixed order.
+     * @return false if it does not have all of them, what was appended is then incomplete
+     */
+    static boolean write(final Request request, final StringBuilder params) {
+        for (String key : KEYS) {
+            final String value = request.param(key);
+            if (value == null) {
+                return false;
+            }
+            if (params.length() > 0) {
+                params.append('&');
+            }
+            params.append(key).append('=').append(value);
+        }
+        return true;
+    }
+}
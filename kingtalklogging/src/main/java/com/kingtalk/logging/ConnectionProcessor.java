@@ -2,326 +2,337 @@ package com.kingtalk.logging;
 
 import android.util.Log;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.util.Map;
+import org.json.JSONArray;
 
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 
 
 class ConnectionProcessor implements Runnable {
-    private static final int CONNECT_TIMEOUT_IN_MILLISECONDS = 30000;
-    private static final int READ_TIMEOUT_IN_MILLISECONDS = 30000;
+    /**
+     * Bulk requests are only used once this many requests are queued
+     */
+    static final int BULK_MIN_QUEUED = 10;
+    static final int BULK_MAX_REQUESTS = 50;
+    /**
+     * Limit on the requests put in one bulk request, counted as UTF-8 bytes
+     */
+    static final int BULK_MAX_BYTES = 64 * 1024;
+
+    /**
+     * How long a device ID merge request is held back after every request before it was sent
+     */
+    static final long DEVICE_ID_MERGE_DELAY_MS = 10000;
+
+    private enum BulkResult {
+        /**
+         * Requests were sent and removed from the queue
+         */
+        SENT,
+        /**
+         * The oldest request has to be sent on its own
+         */
+        SKIPPED,
+        /**
+         * The server does not take the bulk request or failed on it, send requests on their own
+         */
+        REJECTED,
+        /**
+         * Nothing was sent, try again later
+         */
+        FAILED,
+    }
 
     private final LoggingStore store_;
     private final DeviceId deviceId_;
-    private final String serverURL_;
-    private final SSLContext sslContext_;
-
-    private final Map<String, String> requestHeaderCustomValues_;
+    private final RetryBackoff backoff_;
+    private final LaneClaims laneClaims_;
+    private final Transport transport_;
+    // the request being sent, encoded for the transport to stream from
+    private StringBuilder wire_ = new StringBuilder(256);
 
     static String salt;
 
-    ConnectionProcessor(final String serverURL, final LoggingStore store, final DeviceId deviceId, final SSLContext sslContext, final Map<String, String> requestHeaderCustomValues) {
-        serverURL_ = serverURL;
+    /**
+     * @param backoff told about failures and successes, shared by all processors
+     * @param laneClaims keeps processors that run at the same time from sending requests of the same lane, shared by all processors
+     * @param transport sends the requests, shared by all processors
+     */
+    ConnectionProcessor(final LoggingStore store, final DeviceId deviceId, final RetryBackoff backoff, final LaneClaims laneClaims, final Transport transport) {
         store_ = store;
         deviceId_ = deviceId;
-        sslContext_ = sslContext;
-        requestHeaderCustomValues_ = requestHeaderCustomValues;
+        backoff_ = backoff;
+        laneClaims_ = laneClaims;
+        transport_ = transport;
     }
 
-    URLConnection urlConnectionForServerRequest(final String requestData, final String customEndpoint) throws IOException {
-        String urlEndpoint = "/i?";
-        if(customEndpoint != null) {urlEndpoint = customEndpoint;}
-        String urlStr = serverURL_ + urlEndpoint;
-        if(!requestData.contains("&crash=") && requestData.length() < 2048) {
-            urlStr += requestData;
-            urlStr += "&checksum=" + sha1Hash(requestData + salt);
-        } else {
-            urlStr += "checksum=" + sha1Hash(requestData + salt);
-        }
-        final URL url = new URL(urlStr);
-        final HttpURLConnection conn;
-        if (Logging.publicKeyPinCertificates == null && Logging.certificatePinCertificates == null) {
-            conn = (HttpURLConnection)url.openConnection();
-        } else {
-            HttpsURLConnection c = (HttpsURLConnection)url.openConnection();
-            c.setSSLSocketFactory(sslContext_.getSocketFactory());
-            conn = c;
-        }
-        conn.setConnectTimeout(CONNECT_TIMEOUT_IN_MILLISECONDS);
-        conn.setReadTimeout(READ_TIMEOUT_IN_MILLISECONDS);
-        conn.setUseCaches(false);
-        conn.setDoInput(true);
-        conn.setRequestMethod("GET");
-
-        if(requestHeaderCustomValues_ != null){
-            //if there are custom header values, add them
-            if (Logging.sharedInstance().isLoggingEnabled()) {
-                Log.v(Logging.TAG, "Adding [" + requestHeaderCustomValues_.size() + "] custom header fields");
-            }
-            for (Map.Entry<String, String> entry : requestHeaderCustomValues_.entrySet())
-            {
-                String key = entry.getKey();
-                String value = entry.getValue();
-                if(key != null && value != null && !key.isEmpty()){
-                    conn.addRequestProperty(key, value);
-                }
+    @Override
+    public void run() {
+        laneClaims_.workerStarted();
+        try {
+            sendQueue();
+        } finally {
+            // a request counts as failed only if the server took others meanwhile, so that an
+            // outage does not move everything to the dead letters
+            for (Request request : laneClaims_.workerFinished()) {
+                store_.connectionFailed(request);
             }
         }
 
-
-        String picturePath = UserData.getPicturePathFromQuery(url);
-        if (Logging.sharedInstance().isLoggingEnabled()) {
-            Log.d(Logging.TAG, "Got picturePath: " + picturePath);
-        }
         if (Logging.sharedInstance().isLoggingEnabled()) {
-            Log.v(Logging.TAG, "Is the HTTP POST forced: " + Logging.sharedInstance().isHttpPostForced());
+            Log.d(Logging.TAG, "Connection reuse so far: " + ConnectionStats.summary());
         }
-        if(!picturePath.equals("")){
-            //Uploading files:
-            //http://stackoverflow.com/questions/2793150/how-to-use-java-net-urlconnection-to-fire-and-handle-http-requests
-
-            File binaryFile = new File(picturePath);
-            conn.setDoOutput(true);
-            // Just generate some unique random value.
-            String boundary = Long.toHexString(System.currentTimeMillis());
-            // Line separator required by multipart/form-data.
-            String CRLF = "\r\n";
-            String charset = "UTF-8";
-            conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-            OutputStream output = conn.getOutputStream();
-            PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, charset), true);
-            // Send binary file.
-            writer.append("--").append(boundary).append(CRLF);
-            writer.append("Content-Disposition: form-data; name=\"binaryFile\"; filename=\"").append(binaryFile.getName()).append("\"").append(CRLF);
-            writer.append("Content-Type: ").append(URLConnection.guessContentTypeFromName(binaryFile.getName())).append(CRLF);
-            writer.append("Content-Transfer-Encoding: binary").append(CRLF);
-            writer.append(CRLF).flush();
-            FileInputStream fileInputStream = new FileInputStream(binaryFile);
-            byte[] buffer = new byte[1024];
-            int len;
-            try {
-                while ((len = fileInputStream.read(buffer)) != -1) {
-                    output.write(buffer, 0, len);
-                }
-            }catch(IOException ex){
-                ex.printStackTrace();
-            }
-            output.flush(); // Important before continuing with writer!
-            writer.append(CRLF).flush(); // CRLF is important! It indicates end of boundary.
-            fileInputStream.close();
+    }
 
-            // End of multipart/form-data.
-            writer.append("--").append(boundary).append("--").append(CRLF).flush();
-        }
-        else {
-            if(requestData.contains("&crash=") || requestData.length() >= 2048 || Logging.sharedInstance().isHttpPostForced()){
-                if (Logging.sharedInstance().isLoggingEnabled()) {
-                    Log.d(Logging.TAG, "Using HTTP POST");
-                }
-                conn.setDoOutput(true);
-                conn.setRequestMethod("POST");
-                OutputStream os = conn.getOutputStream();
-                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
-                writer.write(requestData);
-                writer.flush();
-                writer.close();
-                os.close();
-            }
-            else{
-                if (Logging.sharedInstance().isLoggingEnabled()) {
-                    Log.d(Logging.TAG, "Using HTTP GET");
+    /**
+     * Sends requests until the queue has none left that this processor may send.
+     */
+    private void sendQueue() {
+        boolean bulk = Logging.sharedInstance().isBulkModeEnabled();
+        while (true) {
+            if (bulk && store_.connectionsCount() >= BULK_MIN_QUEUED && deviceId_.getId() != null
+                    && !(Logging.sharedInstance().isDeviceAppCrawler() && Logging.sharedInstance().ifShouldIgnoreCrawlers())) {
+                final BulkResult result = sendBulk(deviceId_.getId());
+                if (result == BulkResult.SENT) {
+                    continue;
+                } else if (result == BulkResult.FAILED) {
+                    break;
+                } else if (result == BulkResult.REJECTED) {
+                    // send the requests one by one, so that only the ones the server refuses are dropped
+                    bulk = false;
                 }
-                conn.setDoOutput(false);
             }
-        }
-        return conn;
-    }
 
-    @Override
-    public void run() {
-        while (true) {
-            final String[] storedEvents = store_.connections();
-            if (storedEvents == null || storedEvents.length == 0) {
+            final List<Request> next = laneClaims_.take(store_, 1);
+            if (next.isEmpty()) {
                 // currently no data to send, we are done for now
                 break;
             }
 
-            // get first event from collection
-            if (deviceId_.getId() == null) {
-                // When device ID is supplied by OpenUDID or by Google Advertising ID.
-                // In some cases it might take time for them to initialize. So, just wait for it.
-                if (Logging.sharedInstance().isLoggingEnabled()) {
-                    Log.i(Logging.TAG, "No Device ID available yet, skipping request " + storedEvents[0]);
+            try {
+                // got the oldest stored request of a lane no other processor is sending
+                final Request request = next.get(0);
+                final String currentDeviceId = deviceId_.getId();
+                if (currentDeviceId == null) {
+                    // When device ID is supplied by OpenUDID or by Google Advertising ID.
+                    // In some cases it might take time for them to initialize. So, just wait for it.
+                    if (Logging.sharedInstance().isLoggingEnabled()) {
+                        Log.i(Logging.TAG, "No Device ID available yet, skipping request " + request);
+                    }
+                    break;
                 }
-                break;
-            }
-
-            boolean deviceIdOverride = storedEvents[0].contains("&override_id="); //if the sendable data contains a override tag
-            boolean deviceIdChange = storedEvents[0].contains("&device_id="); //if the sendable data contains a device_id tag
 
-            //add the device_id to the created request
-            final String eventData, newId;
-            if (deviceIdOverride) {
-                // if the override tag is used, it means that the device_id will be changed
-                // to finish the session of the previous device_id, we have cache it into the request
-                // this is indicated by having the "override_id" tag. This just means that we
-                // don't use the id provided in the deviceId variable as this might have changed already.
-
-                eventData = storedEvents[0].replace("&override_id=", "&device_id=");
-                newId = null;
-            } else {
-                if (deviceIdChange) {
-                    // this branch will be used if a new device_id is provided
-                    // and a device_id merge on server has to be performed
-
-                    final int endOfDeviceIdTag = storedEvents[0].indexOf("&device_id=") + "&device_id=".length();
-                    newId = ConnectionProcessor.urlDecodeString(storedEvents[0].substring(endOfDeviceIdTag));
-
-                    if (newId.equals(deviceId_.getId())) {
-                        // If the new device_id is the same as previous,
-                        // we don't do anything to change it
+                // a request recorded before the device ID was overridden carries the previous ID, a
+                // device ID change request carries the new one that the current one is merged into
+                final boolean deviceIdChange = request.mergesDeviceId(currentDeviceId);
+                if (request.type == Request.Type.CHANGE_DEVICE_ID && !deviceIdChange) {
+                    if (Logging.sharedInstance().isLoggingEnabled()) {
+                        Log.d(Logging.TAG, "Provided device_id is the same as the previous one used, nothing will be merged");
+                    }
+                } else if (deviceIdChange && store_.delayConnection(request.seq, System.currentTimeMillis() + DEVICE_ID_MERGE_DELAY_MS)) {
+                    // since the new_id will be merged with the old one, this request is held back for 10 seconds
+                    // to give the server time to finish processing previous requests. Only its lane waits.
+                    if (Logging.sharedInstance().isLoggingEnabled()) {
+                        Log.d(Logging.TAG, "Sending device_id merge request in 10 seconds");
+                    }
+                    continue;
+                }
+                final StringBuilder eventData = encode(request, currentDeviceId);
 
-                        eventData = storedEvents[0];
-                        deviceIdChange = false;
+                if(!(Logging.sharedInstance().isDeviceAppCrawler() && Logging.sharedInstance().ifShouldIgnoreCrawlers())) {
+                    //continue with sending the request to the server
+                    try {
+                        final Transport.Response response = transport_.send(new Transport.Call("/i?", eventData, request.picturePath(), false));
 
-                        if (Logging.sharedInstance().isLoggingEnabled()) {
-                            Log.d(Logging.TAG, "Provided device_id is the same as the previous one used, nothing will be merged");
+                        // response code has to be 2xx to be considered a success
+                        final int responseCode = response.code;
+                        final boolean success = response.isSuccess();
+                        if (!success && Logging.sharedInstance().isLoggingEnabled()) {
+                            Log.w(Logging.TAG, "HTTP error response code was " + responseCode + " from submitting event data: " + eventData);
                         }
 
-                    } else {
-                        //new device_id provided, make sure it will be merged
-                        eventData = storedEvents[0] + "&old_device_id=" + deviceId_.getId();
+                        // HTTP response code was good, check response JSON contains {"result":"Success"}
+                        if (success) {
+                            if (Logging.sharedInstance().isLoggingEnabled()) {
+                                Log.d(Logging.TAG, "ok ->" + eventData);
+                            }
 
-                        // since the new_id will be merged with the old one, we wait 10 seconds before sending this request
-                        // to give the server time to finish processing previous requests.
+                            // successfully submitted event data to Count.ly server, so remove
+                            // this one from the stored events collection
+                            store_.removeConnection(request.seq);
+                            laneClaims_.delivered();
 
-                        if (Logging.sharedInstance().isLoggingEnabled()) {
-                            Log.d(Logging.TAG, "Waiting 10 seconds before sending device_id merge request");
-                        }
-
-                        try {
-                            Thread.sleep(10000);
-                        } catch (InterruptedException e) {
+                            if (deviceIdChange) {
+                                deviceId_.changeToDeveloperProvidedId(store_, request.deviceId());
+                            }
+                            backoff_.succeeded();
+                        } else if (!isRetryable(responseCode)) {
                             if (Logging.sharedInstance().isLoggingEnabled()) {
-                                Log.w(Logging.TAG, "While waiting for 10 seconds, sleep was interrupted");
+                                Log.d(Logging.TAG, "fail " + responseCode + " ->" + eventData);
                             }
+                            store_.removeConnection(request.seq);
+                            laneClaims_.delivered();
+                            backoff_.succeeded();
+                        } else if (responseCode == 429) {
+                            // the server wants less traffic, stop processing, retry once the backoff has passed
+                            backoff_.failed(retryAfter(response), System.currentTimeMillis());
+                            break;
+                        } else {
+                            // warning was logged above, hold back the lane of this request and go on with the others
+                            backoff_.failed(retryAfter(response), System.currentTimeMillis());
+                            laneClaims_.failed(request);
                         }
-
+                    } catch (Exception e) {
                         if (Logging.sharedInstance().isLoggingEnabled()) {
-                            Log.d(Logging.TAG, "Wait (for changing device_id) finished, continuing processing request");
+                            Log.w(Logging.TAG, "Got exception while trying to submit event data: [" + eventData + "] [" + e + "]");
                         }
+                        // if exception occurred, stop processing, retry once the backoff has passed
+                        backoff_.failed(0, System.currentTimeMillis());
+                        break;
                     }
                 } else {
-                    // this branch will be used in almost all requests.
-                    // This just adds the device_id to them
+                    //device is identified as a app crawler and nothing is sent to the server
+                    if (Logging.sharedInstance().isLoggingEnabled()) {
+                        Log.i(Logging.TAG, "Device identified as a app crawler, skipping request " + request);
+                    }
 
-                    newId = null;
-                    eventData = storedEvents[0] + "&device_id=" + ConnectionProcessor.urlEncodeString(deviceId_.getId());
+                    //remove stored data
+                    store_.removeConnection(request.seq);
                 }
+            } finally {
+                // removed from the store by now, or marked failed
+                laneClaims_.release(next);
             }
+        }
+    }
 
-            if(!(Logging.sharedInstance().isDeviceAppCrawler() && Logging.sharedInstance().ifShouldIgnoreCrawlers())) {
-                //continue with sending the request to the server
-                URLConnection conn = null;
-                try {
-                    // initialize and open connection
-                    conn = urlConnectionForServerRequest(eventData, null);
-                    conn.connect();
-
-                    // response code has to be 2xx to be considered a success
-                    boolean success = true;
-                    final int responseCode;
-                    if (conn instanceof HttpURLConnection) {
-                        final HttpURLConnection httpConn = (HttpURLConnection) conn;
-                        responseCode = httpConn.getResponseCode();
-                        success = responseCode >= 200 && responseCode < 300;
-
-                        if (!success && Logging.sharedInstance().isLoggingEnabled()) {
-                            Log.w(Logging.TAG, "HTTP error response code was " + responseCode + " from submitting event data: " + eventData);
-                        }
-                    } else {
-                        responseCode = 0;
-                    }
+    /**
+     * Encodes a request into the buffer of this processor, which the transport writes to the
+     * connection without making a String of it.
+     */
+    private StringBuilder encode(final Request request, final String currentDeviceId) {
+        if (wire_.capacity() > RequestWriter.MAX_KEPT_CAPACITY) {
+            wire_ = new StringBuilder(256);
+        }
+        wire_.setLength(0);
+        request.encode(currentDeviceId, wire_);
+        return wire_;
+    }
 
-                    // HTTP response code was good, check response JSON contains {"result":"Success"}
-                    if (success) {
-                        if (Logging.sharedInstance().isLoggingEnabled()) {
-                            Log.d(Logging.TAG, "ok ->" + eventData);
-                        }
+    /**
+     * Sends the oldest queued requests of the lanes that are not blocked in one request to the
+     * bulk endpoint. Stops before a request that merges device IDs or uploads a picture, as those
+     * need to go on their own.
+     */
+    private BulkResult sendBulk(final String currentDeviceId) {
+        final List<Request> taken = laneClaims_.take(store_, BULK_MAX_REQUESTS);
+        try {
+            return sendBulk(currentDeviceId, taken);
+        } finally {
+            laneClaims_.release(taken);
+        }
+    }
 
-                        // successfully submitted event data to Count.ly server, so remove
-                        // this one from the stored events collection
-                        store_.removeConnection(storedEvents[0]);
+    private BulkResult sendBulk(final String currentDeviceId, final List<Request> requests) {
+        final JSONArray batch = new JSONArray();
+        final List<Long> seqs = new ArrayList<>();
+        int bytes = 0;
+        String appKey = null;
+        for (Request request : requests) {
+            if (request.mergesDeviceId(currentDeviceId) || !request.picturePath().isEmpty()) {
+                break;
+            }
+            final String requestData = request.encode(currentDeviceId);
+            final int requestBytes = utf8Length(requestData);
+            if (batch.length() > 0 && bytes + requestBytes > BULK_MAX_BYTES) {
+                break;
+            }
+            if (appKey == null) {
+                appKey = request.param("app_key");
+            }
+            batch.put(requestData);
+            bytes += requestBytes;
+            seqs.add(request.seq);
+        }
+        if (batch.length() < 2 || appKey == null) {
+            return BulkResult.SKIPPED;
+        }
 
-                        if (deviceIdChange) {
-                            deviceId_.changeToDeveloperProvidedId(store_, newId);
-                        }
-                    } else if (responseCode >= 400 && responseCode < 500) {
-                        if (Logging.sharedInstance().isLoggingEnabled()) {
-                            Log.d(Logging.TAG, "fail " + responseCode + " ->" + eventData);
-                        }
-                        store_.removeConnection(storedEvents[0]);
-                    } else {
-                        // warning was logged above, stop processing, let next tick take care of retrying
-                        break;
-                    }
-                } catch (Exception e) {
-                    if (Logging.sharedInstance().isLoggingEnabled()) {
-                        Log.w(Logging.TAG, "Got exception while trying to submit event data: [" + eventData + "] [" + e + "]");
-                    }
-                    // if exception occurred, stop processing, let next tick take care of retrying
-                    break;
-                } finally {
-                    // free connection resources
-                    if (conn instanceof HttpURLConnection) {
-                        try {
-                            InputStream stream = conn.getInputStream();
-                            stream.close();
-                        } catch (Throwable ignored){}
-
-                        ((HttpURLConnection) conn).disconnect();
-                    }
+        final String bulkData = "app_key=" + appKey + "&requests=" + urlEncodeString(batch.toString());
+        try {
+            final Transport.Response response = transport_.send(new Transport.Call("/i/bulk?", bulkData, "", true));
+            final int responseCode = response.code;
+            if (response.isSuccess()) {
+                if (Logging.sharedInstance().isLoggingEnabled()) {
+                    Log.d(Logging.TAG, "ok -> bulk of " + batch.length() + " requests");
+                }
+                for (long seq : seqs) {
+                    store_.removeConnection(seq);
+                }
+                laneClaims_.delivered();
+                backoff_.succeeded();
+                return BulkResult.SENT;
+            } else if (responseCode != 429) {
+                // sent one by one, a request the server fails on only holds up its own lane
+                if (Logging.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Logging.TAG, "HTTP error response code was " + responseCode + " from submitting a bulk of " + batch.length() + " requests, sending them one by one");
                 }
+                return BulkResult.REJECTED;
             } else {
-                //device is identified as a app crawler and nothing is sent to the server
                 if (Logging.sharedInstance().isLoggingEnabled()) {
-                    Log.i(Logging.TAG, "Device identified as a app crawler, skipping request " + storedEvents[0]);
+                    Log.w(Logging.TAG, "HTTP error response code was " + responseCode + " from submitting a bulk of " + batch.length() + " requests");
                 }
-
-                //remove stored data
-                store_.removeConnection(storedEvents[0]);
+                backoff_.failed(retryAfter(response), System.currentTimeMillis());
+                return BulkResult.FAILED;
+            }
+        } catch (Exception e) {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.w(Logging.TAG, "Got exception while trying to submit a bulk of " + batch.length() + " requests [" + e + "]");
             }
+            backoff_.failed(0, System.currentTimeMillis());
+            return BulkResult.FAILED;
         }
     }
 
-    static String urlEncodeString(String givenValue){
-        String result = "";
+    /**
+     * Returns true if a request that got the response code should be sent again later: server
+     * errors and 429 Too Many Requests. Other error responses mean the server will never take it.
+     */
+    private static boolean isRetryable(final int responseCode) {
+        return responseCode == 429 || responseCode < 400 || responseCode >= 500;
+    }
 
-        try {
-            result = java.net.URLEncoder.encode(givenValue, "UTF-8");
-        } catch (UnsupportedEncodingException ignored) {
-            // should never happen because Android guarantees UTF-8 support
+    private static long retryAfter(final Transport.Response response) {
+        return RetryBackoff.parseRetryAfter(response.header("Retry-After"), System.currentTimeMillis());
+    }
+
+    /**
+     * Returns how many bytes a string takes as UTF-8, without encoding it.
+     */
+    static int utf8Length(final CharSequence value) {
+        int bytes = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
         }
+        return bytes;
+    }
 
-        return result;
+    static String urlEncodeString(String givenValue){
+        return RequestWriter.urlEncode(givenValue);
     }
 
-    private static String urlDecodeString(String givenValue){
+    static String urlDecodeString(String givenValue){
         String decodedResult = "";
 
         try {
@@ -333,37 +344,6 @@ class ConnectionProcessor implements Runnable {
         return decodedResult;
     }
 
-    private static String sha1Hash(String toHash) {
-        String hash = null;
-        try {
-            MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
-            byte[] bytes = toHash.getBytes(StandardCharsets.UTF_8);
-            digest.update(bytes, 0, bytes.length);
-            bytes = digest.digest();
-
-            // This is ~55x faster than looping and String.formating()
-            hash = bytesToHex( bytes );
-        }
-        catch( Throwable e ) {
-            if (Logging.sharedInstance().isLoggingEnabled()) {
-                Log.e(Logging.TAG, "Cannot tamper-protect params", e);
-            }
-        }
-        return hash;
-    }
-
-    // http://stackoverflow.com/questions/9655181/convert-from-byte-array-to-hex-string-in-java
-    final private static char[] hexArray = "0123456789ABCDEF".toCharArray();
-    private static String bytesToHex(byte[] bytes) {
-        char[] hexChars = new char[ bytes.length * 2 ];
-        for( int j = 0; j < bytes.length; j++ ) {
-            int v = bytes[ j ] & 0xFF;
-            hexChars[ j * 2 ] = hexArray[ v >>> 4 ];
-            hexChars[ j * 2 + 1 ] = hexArray[ v & 0x0F ];
-        }
-        return new String( hexChars ).toLowerCase();
-    }
-
     // for unit testing
 //    String getServerURL() { return serverURL_; }
 //    LoggingStore getLoggingStore() { return store_; }
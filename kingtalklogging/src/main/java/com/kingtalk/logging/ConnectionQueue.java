@@ -2,14 +2,17 @@ package com.kingtalk.logging;
 
 import android.content.Context;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Random;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ScheduledFuture;
 
+import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 
 import static com.kingtalk.logging.Logging.LoggingFeatureNames.attribution;
@@ -20,14 +23,25 @@ import static com.kingtalk.logging.Logging.LoggingFeatureNames.sessions;
 import static com.kingtalk.logging.Logging.LoggingFeatureNames.users;
 
 class ConnectionQueue {
+    /**
+     * How long a push token is held back, so that the session it belongs to is processed by the server first
+     */
+    static final long TOKEN_SESSION_DELAY_MS = 10000;
+
     private LoggingStore store_;
-    private ExecutorService executor_;
     private String appKey_;
     private Context context_;
     private String serverURL_;
-    private Future<?> connectionProcessorFuture_;
+    private final List<Future<?>> connectionProcessorFutures_ = new ArrayList<>();
+    private final List<ScheduledFuture<?>> delayedTasks_ = new ArrayList<>();
     private DeviceId deviceId_;
-    private SSLContext sslContext_;
+    private SSLSocketFactory sslSocketFactory_;
+    private final RetryBackoff backoff_ = new RetryBackoff(new Random());
+    private final LaneClaims laneClaims_ = new LaneClaims();
+    // set with setTransport, null for the default one
+    private Transport customTransport_;
+    // URLConnectionTransport with the current settings, built when first needed
+    private Transport transport_;
 
     private Map<String, String> requestHeaderCustomValues;
 
@@ -52,15 +66,18 @@ class ConnectionQueue {
         return serverURL_;
     }
 
-    void setServerURL(final String serverURL) {
+    synchronized void setServerURL(final String serverURL) {
         serverURL_ = serverURL;
+        transport_ = null;
 
+        // one factory for all connections, so that they can be kept alive and their sockets counted
         if (Logging.publicKeyPinCertificates == null && Logging.certificatePinCertificates == null) {
-            sslContext_ = null;
+            sslSocketFactory_ = new ConnectionStats.CountingSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
         } else try {
             TrustManager[] tm = {new CertificateTrustManager(Logging.publicKeyPinCertificates, Logging.certificatePinCertificates)};
-            sslContext_ = SSLContext.getInstance("TLS");
-            sslContext_.init(null, tm, null);
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, tm, null);
+            sslSocketFactory_ = new ConnectionStats.CountingSocketFactory(sslContext.getSocketFactory());
         } catch (Throwable e) {
             throw new IllegalStateException(e);
         }
@@ -80,10 +97,36 @@ class ConnectionQueue {
         this.deviceId_ = deviceId;
     }
 
-    void setRequestHeaderCustomValues(Map<String, String> headerCustomValues){
+    synchronized void setRequestHeaderCustomValues(Map<String, String> headerCustomValues){
+        if (headerCustomValues != requestHeaderCustomValues) {
+            transport_ = null;
+        }
         requestHeaderCustomValues = headerCustomValues;
     }
 
+    /**
+     * Replaces the URLConnectionTransport requests are sent with, e.g. by a mock for tests.
+     * @param transport null to go back to the default one
+     */
+    synchronized void setTransport(final Transport transport) {
+        customTransport_ = transport;
+    }
+
+    /**
+     * Returns the transport requests to the server are sent with. The default one is built once
+     * and shared until the server URL, the certificate pinning or the custom headers change, so
+     * that what it learned about the server, like a refused gzip body, is kept.
+     */
+    synchronized Transport getTransport() {
+        if (customTransport_ != null) {
+            return customTransport_;
+        }
+        if (transport_ == null) {
+            transport_ = new URLConnectionTransport(serverURL_, sslSocketFactory_, requestHeaderCustomValues);
+        }
+        return transport_;
+    }
+
     /**
      * Checks internal state and throws IllegalStateException if state is invalid to begin use.
      * @throws IllegalStateException if context, app key, store, or server URL have not been set
@@ -114,20 +157,17 @@ class ConnectionQueue {
         checkInternalState();
 
         boolean dataAvailable = false;//will only send data if there is something valuable to send
-        String data = prepareCommonRequestData();
+        final Request request = newRequest(Request.Type.BEGIN_SESSION);
 
         if(Logging.sharedInstance().getConsent(sessions)) {
             //add session data if consent given
-            data += "&begin_session=1"
-                    + "&metrics=" + DeviceInfo.getMetrics(context_);//can be only sent with begin session
+            request.param("begin_session", 1)
+                    .param("metrics", DeviceInfo.getMetrics(context_));//can be only sent with begin session
             dataAvailable = true;
         }
 
         LoggingStore cs = getLoggingStore();
-        String locationData = prepareLocationData(cs);
-
-        if(!locationData.isEmpty()){
-            data += locationData;
+        if(addLocationData(request, cs)){
             dataAvailable = true;
         }
 
@@ -137,7 +177,7 @@ class ConnectionQueue {
                 String cachedAdId = store_.getCachedAdvertisingId();
 
                 if (!cachedAdId.isEmpty()) {
-                    data += "&aid=" + ConnectionProcessor.urlEncodeString("{\"adid\":\"" + cachedAdId + "\"}");
+                    request.param("aid", ConnectionProcessor.urlEncodeString("{\"adid\":\"" + cachedAdId + "\"}"));
 
                     dataAvailable = true;
                 }
@@ -147,14 +187,15 @@ class ConnectionQueue {
         Logging.sharedInstance().isBeginSessionSent = true;
 
         if(dataAvailable) {
-            store_.addConnection(data);
+            store_.addConnection(request);
             tick();
         }
     }
 
     /**
-     * Records a session duration event for the app and sends it to the server. This method does nothing
-     * if passed a negative or zero duration.
+     * Records a session duration event for the app and sends it to the server. If the request queued
+     * last is a heartbeat that was not sent yet, the duration is added to it instead. This method does
+     * nothing if passed a negative or zero duration.
      * @param duration duration in seconds to extend the current app session, should be more than zero
      * @throws IllegalStateException if context, app key, store, or server URL have not been set
      */
@@ -162,10 +203,10 @@ class ConnectionQueue {
         checkInternalState();
         if (duration > 0) {
             boolean dataAvailable = false;//will only send data if there is something valuable to send
-            String data = prepareCommonRequestData();
+            final Request request = newRequest(Request.Type.UPDATE_SESSION);
 
             if(Logging.sharedInstance().getConsent(sessions)) {
-                data += "&session_duration=" + duration;
+                request.param("session_duration", duration);
                 dataAvailable = true;
             }
 
@@ -174,14 +215,14 @@ class ConnectionQueue {
                     String cachedAdId = store_.getCachedAdvertisingId();
 
                     if (!cachedAdId.isEmpty()) {
-                        data += "&aid=" + ConnectionProcessor.urlEncodeString("{\"adid\":\"" + cachedAdId + "\"}");
+                        request.param("aid", ConnectionProcessor.urlEncodeString("{\"adid\":\"" + cachedAdId + "\"}"));
                         dataAvailable = true;
                     }
                 }
             }
 
             if(dataAvailable) {
-                store_.addConnection(data);
+                laneClaims_.add(store_, request);
                 tick();
             }
         }
@@ -195,16 +236,13 @@ class ConnectionQueue {
             return;
         }
 
-        String data = prepareCommonRequestData();
+        final Request request = newRequest(Request.Type.CHANGE_DEVICE_ID).deviceId(deviceId);
 
         if(Logging.sharedInstance().getConsent(sessions)) {
-            data += "&session_duration=" + duration;
+            request.param("session_duration", duration);
         }
 
-        // !!!!! THIS SHOULD ALWAYS BE ADDED AS THE LAST FIELD, OTHERWISE MERGING BREAKS !!!!!
-        data += "&device_id=" + ConnectionProcessor.urlEncodeString(deviceId);
-
-        store_.addConnection(data);
+        store_.addConnection(request);
         tick();
     }
 
@@ -215,18 +253,17 @@ class ConnectionQueue {
             return;
         }
 
-        final String data = prepareCommonRequestData()
-                + "&token_session=1"
-                + "&android_token=" + token
-                + "&test_mode=" + (mode == Logging.LoggingMessagingMode.TEST ? 2 : 0)
-                + "&locale=" + DeviceInfo.getLocale();
+        final Request request = newRequest(Request.Type.TOKEN_SESSION)
+                .param("token_session", 1)
+                .param("android_token", token)
+                .param("test_mode", mode == Logging.LoggingMessagingMode.TEST ? 2 : 0)
+                .param("locale", DeviceInfo.getLocale());
 
         // To ensure begin_session will be fully processed by the server before token_session
-        final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
-        worker.schedule(() -> {
-            store_.addConnection(data);
+        schedule(SdkScheduler.Lane.IO, () -> {
+            store_.addConnection(request);
             tick();
-        }, 10, TimeUnit.SECONDS);
+        }, TOKEN_SESSION_DELAY_MS);
     }
 
     /**
@@ -243,24 +280,24 @@ class ConnectionQueue {
         checkInternalState();
 
         boolean dataAvailable = false;//will only send data if there is something valuable to send
-        String data = prepareCommonRequestData();
+        final Request request = newRequest(Request.Type.END_SESSION);
 
         if(Logging.sharedInstance().getConsent(sessions)) {
-            data += "&end_session=1";
+            request.param("end_session", 1);
             if (duration > 0) {
-                data += "&session_duration=" + duration;
+                request.param("session_duration", duration);
             }
             dataAvailable = true;
         }
 
         if (deviceIdOverride != null && Logging.sharedInstance().anyConsentGiven()) {
             //if no consent is given, device ID override is not sent
-            data += "&override_id=" + ConnectionProcessor.urlEncodeString(deviceIdOverride);
+            request.deviceId(deviceIdOverride);
             dataAvailable = true;
         }
 
         if(dataAvailable) {
-            store_.addConnection(data);
+            store_.addConnection(request);
             tick();
         }
     }
@@ -271,12 +308,12 @@ class ConnectionQueue {
     void sendLocation() {
         checkInternalState();
 
-        String data = prepareCommonRequestData();
+        final Request request = newRequest(Request.Type.LOCATION);
 
         LoggingStore cs = getLoggingStore();
-        data += prepareLocationData(cs);
+        addLocationData(request, cs);
 
-        store_.addConnection(data);
+        store_.addConnection(request);
 
         tick();
     }
@@ -295,9 +332,7 @@ class ConnectionQueue {
         String userdata = UserData.getDataForRequest();
 
         if(!userdata.equals("")){
-            String data = prepareCommonRequestData()
-                    + userdata;
-            store_.addConnection(data);
+            store_.addConnection(newRequest(Request.Type.USER_DETAILS).query(userdata));
 
             tick();
         }
@@ -316,9 +351,7 @@ class ConnectionQueue {
         }
 
         if(referrer != null){
-            String data = prepareCommonRequestData()
-                    + referrer;
-            store_.addConnection(data);
+            store_.addConnection(newRequest(Request.Type.REFERRER).query(referrer));
 
             tick();
         }
@@ -340,16 +373,15 @@ class ConnectionQueue {
             error = error.substring(0, Math.min(10000, error.length()));
         }
 
-        final String data = prepareCommonRequestData()
-                          + "&crash=" + ConnectionProcessor.urlEncodeString(CrashDetails.getCrashData(context_, error, nonfatal, isNativeCrash));
-
-        store_.addConnection(data);
+        store_.addConnection(newRequest(Request.Type.CRASH)
+                .param("crash", ConnectionProcessor.urlEncodeString(CrashDetails.getCrashData(context_, error, nonfatal, isNativeCrash))));
 
         tick();
     }
 
     /**
-     * Records the specified events and sends them to the server.
+     * Records the specified events and sends them to the server. If the request queued last holds
+     * events that were not sent yet, these are appended to it instead.
      * @param events URL-encoded JSON string of event data
      * @throws IllegalStateException if context, app key, store, or server URL have not been set
      */
@@ -360,42 +392,43 @@ class ConnectionQueue {
         ///CONSENT FOR EVENTS IS CHECKED ON EVENT CREATION//
         ////////////////////////////////////////////////////
 
-        final String data = prepareCommonRequestData()
-                          + "&events=" + events;
-
-        store_.addConnection(data);
+        laneClaims_.add(store_, newRequest(Request.Type.EVENTS).param("events", events));
         tick();
     }
 
     void sendConsentChanges(String formattedConsentChanges) {
         checkInternalState();
 
-        final String data = prepareCommonRequestData()
-                + "&consent=" + ConnectionProcessor.urlEncodeString(formattedConsentChanges);
-
-        store_.addConnection(data);
+        store_.addConnection(newRequest(Request.Type.CONSENT)
+                .param("consent", ConnectionProcessor.urlEncodeString(formattedConsentChanges)));
 
         tick();
     }
 
-    private String prepareCommonRequestData(){
-        return "app_key=" + appKey_
-                + "&timestamp=" + Logging.currentTimestampMs()
-                + "&hour=" + Logging.currentHour()
-                + "&dow=" + Logging.currentDayOfWeek()
-                + "&tz=" + DeviceInfo.getTimezoneOffset()
-                + "&sdk_version=" + Logging.KING_TALK_LOGGING_SDK_VERSION_STRING
-                + "&sdk_name=" + Logging.LOGGING_SDK_NAME;
+    private Request newRequest(final Request.Type type){
+        return new Request(type)
+                .param("app_key", appKey_)
+                .param("timestamp", Logging.currentTimestampMs())
+                .param("hour", Logging.currentHour())
+                .param("dow", Logging.currentDayOfWeek())
+                .param("tz", DeviceInfo.getTimezoneOffset())
+                .param("sdk_version", Logging.KING_TALK_LOGGING_SDK_VERSION_STRING)
+                .param("sdk_name", Logging.LOGGING_SDK_NAME);
     }
 
-    private String prepareLocationData(LoggingStore cs){
-        String data = "";
+    /**
+     * Adds the location parameters to a request.
+     * @return true if any were added
+     */
+    private boolean addLocationData(final Request request, LoggingStore cs){
+        boolean added = false;
 
         if((cs.getLocationDisabled() || !Logging.sharedInstance().getConsent(location))){
             //if location is disabled or consent not given, send empty location info
             //this way it is cleared server side and geoip is not used
             //do this only if allowed
-            data += "&location=";
+            request.param("location", "");
+            added = true;
         } else {
             if(Logging.sharedInstance().getConsent(location)) {
                 //location should be send, add all the fields we have
@@ -405,79 +438,120 @@ class ConnectionQueue {
                 String ip = cs.getLocationIpAddress();
 
                 if(location != null && !location.isEmpty()){
-                    data += "&location=" + ConnectionProcessor.urlEncodeString(location);
+                    request.param("location", ConnectionProcessor.urlEncodeString(location));
+                    added = true;
                 }
 
                 if(city != null && !city.isEmpty()){
-                    data += "&city=" + city;
+                    request.param("city", city);
+                    added = true;
                 }
 
                 if(country_code != null && !country_code.isEmpty()){
-                    data += "&country_code=" + country_code;
+                    request.param("country_code", country_code);
+                    added = true;
                 }
 
                 if(ip != null && !ip.isEmpty()){
-                    data += "&ip=" + ip;
+                    request.param("ip", ip);
+                    added = true;
                 }
             }
         }
-        return data;
+        return added;
     }
 
     String prepareRemoteConfigRequest(String keysInclude, String keysExclude){
-        String data = prepareCommonRequestData()
-                + "&method=fetch_remote_config"
-                + "&device_id=" + ConnectionProcessor.urlEncodeString(deviceId_.getId());
+        final Request request = newRequest(Request.Type.OTHER)
+                .param("method", "fetch_remote_config");
 
         if(Logging.sharedInstance().getConsent(sessions)) {
             //add session data if consent given
-            data += "&metrics=" + DeviceInfo.getMetrics(context_);
+            request.param("metrics", DeviceInfo.getMetrics(context_));
         }
 
         LoggingStore cs = getLoggingStore();
-        String locationData = prepareLocationData(cs);
-        data += locationData;
+        addLocationData(request, cs);
 
         //add key filters
         if(keysInclude != null){
-            data += "&keys=" +  ConnectionProcessor.urlEncodeString(keysInclude);
+            request.param("keys", ConnectionProcessor.urlEncodeString(keysInclude));
         } else if(keysExclude != null) {
-            data += "&omit_keys=" + ConnectionProcessor.urlEncodeString(keysExclude);
+            request.param("omit_keys", ConnectionProcessor.urlEncodeString(keysExclude));
         }
 
-        return data;
+        return request.encode(deviceId_.getId());
+    }
+
+    /**
+     * Runs a task on a lane of the {@link SdkScheduler} once the delay has passed, unless
+     * {@link #cancelDelayedTasks()} is called first.
+     */
+    private synchronized void schedule(final SdkScheduler.Lane lane, final Runnable task, final long delayMs) {
+        for (Iterator<ScheduledFuture<?>> tasks = delayedTasks_.iterator(); tasks.hasNext(); ) {
+            if (tasks.next().isDone()) {
+                tasks.remove();
+            }
+        }
+        delayedTasks_.add(SdkScheduler.shared().schedule(lane, task, delayMs));
     }
 
     /**
-     * Ensures that an executor has been created for ConnectionProcessor instances to be submitted to.
+     * Drops the tasks scheduled for later, for when the queue is reset.
      */
-    private void ensureExecutor() {
-        if (executor_ == null) {
-            executor_ = Executors.newSingleThreadExecutor();
+    synchronized void cancelDelayedTasks() {
+        for (ScheduledFuture<?> task : delayedTasks_) {
+            task.cancel(false);
         }
+        delayedTasks_.clear();
+    }
+
+    RetryBackoff getRetryBackoff() {
+        return backoff_;
     }
 
     /**
      * Starts ConnectionProcessor instances running in the background to
-     * process the local connection queue data.
-     * Does nothing if there is connection queue data or if a ConnectionProcessor
-     * is already running.
+     * process the local connection queue data, up to {@link Logging#getMaxParallelRequests()}
+     * at the same time. They share the queue lane by lane, see {@link LaneClaims}.
+     * Does nothing if there is no connection queue data or if enough ConnectionProcessors
+     * are already running, or while sending is put off after a failure.
      */
-    void tick() {
-        if (!store_.isEmptyConnections() && (connectionProcessorFuture_ == null || connectionProcessorFuture_.isDone())) {
-            ensureExecutor();
-            connectionProcessorFuture_ = executor_.submit(createConnectionProcessor());
+    synchronized void tick() {
+        for (Iterator<Future<?>> futures = connectionProcessorFutures_.iterator(); futures.hasNext(); ) {
+            if (futures.next().isDone()) {
+                futures.remove();
+            }
+        }
+        if (!store_.isEmptyConnections() && backoff_.canAttempt(System.currentTimeMillis())) {
+            final int maxParallelRequests = Math.min(Logging.sharedInstance().getMaxParallelRequests(), store_.connectionsCount());
+            while (connectionProcessorFutures_.size() < maxParallelRequests) {
+                final ConnectionProcessor processor = createConnectionProcessor();
+                connectionProcessorFutures_.add(SdkScheduler.shared().execute(SdkScheduler.Lane.NETWORK, () -> {
+                    processor.run();
+                    tickWhenDelayedConnectionIsDue();
+                }));
+            }
+        }
+    }
+
+    /**
+     * Schedules a tick for when the next request that was held back, like a device ID merge,
+     * may be sent. Nothing waits for it meanwhile.
+     */
+    private synchronized void tickWhenDelayedConnectionIsDue() {
+        final long due = store_ == null ? 0 : store_.nextDelayedConnection();
+        if (due == 0) {
+            return;
         }
+        schedule(SdkScheduler.Lane.TIMER, this::tick, Math.max(0, due - System.currentTimeMillis()));
     }
 
     ConnectionProcessor createConnectionProcessor(){
-        return new ConnectionProcessor(serverURL_, store_, deviceId_, sslContext_, requestHeaderCustomValues);
+        return new ConnectionProcessor(store_, deviceId_, backoff_, laneClaims_, getTransport());
     }
 
     // for unit testing
-//    ExecutorService getExecutor() { return executor_; }
-//    void setExecutor(final ExecutorService executor) { executor_ = executor; }
-//    Future<?> getConnectionProcessorFuture() { return connectionProcessorFuture_; }
-//    void setConnectionProcessorFuture(final Future<?> connectionProcessorFuture) { connectionProcessorFuture_ = connectionProcessorFuture; }
+//    List<Future<?>> getConnectionProcessorFutures() { return connectionProcessorFutures_; }
 
 }
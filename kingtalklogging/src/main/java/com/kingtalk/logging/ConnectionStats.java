@@ -0,0 +1,123 @@
+package com.kingtalk.logging;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Counts how well connections to the server are reused.
+ *
+ * ConnectionProcessor counts every request it sends. The socket factory counts the sockets it
+ * opens and the TLS handshakes that resumed an earlier session. Sockets are only seen for HTTPS
+ * servers, for those every request beyond the sockets opened went over a kept-alive connection.
+ */
+class ConnectionStats {
+    private static long requests_;
+    private static long socketsOpened_;
+    private static long tlsHandshakes_;
+    private static long tlsSessionsResumed_;
+
+    private ConnectionStats() {}
+
+    static synchronized void requestSent() {
+        requests_++;
+    }
+
+    static synchronized long requests() {
+        return requests_;
+    }
+
+    static synchronized long socketsOpened() {
+        return socketsOpened_;
+    }
+
+    static synchronized long tlsHandshakes() {
+        return tlsHandshakes_;
+    }
+
+    static synchronized long tlsSessionsResumed() {
+        return tlsSessionsResumed_;
+    }
+
+    private static synchronized void socketOpened() {
+        socketsOpened_++;
+    }
+
+    private static synchronized void handshakeCompleted(final boolean resumed) {
+        tlsHandshakes_++;
+        if (resumed) {
+            tlsSessionsResumed_++;
+        }
+    }
+
+    static synchronized String summary() {
+        return requests_ + " requests over " + socketsOpened_ + " TLS sockets, " + tlsSessionsResumed_ + " of " + tlsHandshakes_ + " handshakes resumed a session";
+    }
+
+    /**
+     * Counts the sockets the wrapped factory opens. HttpsURLConnection only reuses connections
+     * that were opened by the same factory, so a single instance is used for all requests.
+     */
+    static class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate_;
+
+        CountingSocketFactory(final SSLSocketFactory delegate) {
+            delegate_ = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate_.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate_.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(final Socket s, final String host, final int port, final boolean autoClose) throws IOException {
+            return track(delegate_.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port) throws IOException {
+            return track(delegate_.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port, final InetAddress localHost, final int localPort) throws IOException {
+            return track(delegate_.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress host, final int port) throws IOException {
+            return track(delegate_.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort) throws IOException {
+            return track(delegate_.createSocket(address, port, localAddress, localPort));
+        }
+
+        private static Socket track(final Socket socket) {
+            socketOpened();
+            if (socket instanceof SSLSocket) {
+                final long openedAt = System.currentTimeMillis();
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    @Override
+                    public void handshakeCompleted(final HandshakeCompletedEvent event) {
+                        // a resumed session was created by an earlier handshake
+                        ConnectionStats.handshakeCompleted(event.getSession().getCreationTime() < openedAt);
+                    }
+                });
+            }
+            return socket;
+        }
+    }
+}
@@ -12,9 +12,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.UnsupportedEncodingException;
-import java.util.Date;
 import java.util.Locale;
-import java.util.TimeZone;
 
 /**
  * This class provides several static methods to retrieve information about
@@ -161,7 +159,7 @@ class DeviceInfo {
     }
 
     static int getTimezoneOffset() {
-        return TimeZone.getDefault().getOffset(new Date().getTime()) / 60000;
+        return RequestWriter.timezoneOffsetMinutes(System.currentTimeMillis());
     }
 
     /**
@@ -0,0 +1,256 @@
+package com.kingtalk.logging;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary form of an {@link Event} for the local event queue. JSON is only produced
+ * when events are sent.
+ *
+ * A record starts with a version byte followed by tag-length-value fields: a one byte tag, the
+ * value length as a varint and the value. Fields at their default value are left out and unknown
+ * tags are skipped. Integers are zigzag varints, timestamps are stored as the difference to
+ * {@link #TIMESTAMP_EPOCH} which keeps them to five bytes, doubles take eight bytes.
+ *
+ * Records written by older versions are JSON text, they can be told apart with {@link #isBinary(byte[])}.
+ */
+class EventCodec {
+    static final byte VERSION = 1;
+
+    /**
+     * 2020-01-01T00:00:00Z in milliseconds
+     */
+    static final long TIMESTAMP_EPOCH = 1577836800000L;
+
+    private static final int TAG_KEY = 1;
+    private static final int TAG_COUNT = 2;
+    private static final int TAG_SUM = 3;
+    private static final int TAG_DUR = 4;
+    private static final int TAG_TIMESTAMP = 5;
+    private static final int TAG_HOUR = 6;
+    private static final int TAG_DOW = 7;
+    private static final int TAG_SEGMENTATION = 8;
+    private static final int TAG_SEGMENTATION_INT = 9;
+    private static final int TAG_SEGMENTATION_DOUBLE = 10;
+
+    private EventCodec() {}
+
+    /**
+     * Returns true if the record was written by {@link #encode(Event)}, false for a JSON record.
+     */
+    static boolean isBinary(final byte[] record) {
+        return record.length > 0 && record[0] == VERSION;
+    }
+
+    static byte[] encode(final Event event) {
+        final Writer out = new Writer();
+        out.buffer.write(VERSION);
+        if (event.key != null) {
+            out.field(TAG_KEY).string(event.key).end();
+        }
+        if (event.count != 0) {
+            out.field(TAG_COUNT).varint(event.count).end();
+        }
+        if (event.sum != 0) {
+            out.field(TAG_SUM).float64(event.sum).end();
+        }
+        if (event.dur > 0) {
+            out.field(TAG_DUR).float64(event.dur).end();
+        }
+        out.field(TAG_TIMESTAMP).varint(event.timestamp - TIMESTAMP_EPOCH).end();
+        if (event.hour != 0) {
+            out.field(TAG_HOUR).varint(event.hour).end();
+        }
+        if (event.dow != 0) {
+            out.field(TAG_DOW).varint(event.dow).end();
+        }
+        if (event.segmentation != null) {
+            out.field(TAG_SEGMENTATION).varint(event.segmentation.size());
+            for (Map.Entry<String, String> pair : event.segmentation.entrySet()) {
+                out.string(pair.getKey()).string(pair.getValue());
+            }
+            out.end();
+        }
+        if (event.segmentationInt != null) {
+            out.field(TAG_SEGMENTATION_INT).varint(event.segmentationInt.size());
+            for (Map.Entry<String, Integer> pair : event.segmentationInt.entrySet()) {
+                out.string(pair.getKey()).varint(pair.getValue());
+            }
+            out.end();
+        }
+        if (event.segmentationDouble != null) {
+            out.field(TAG_SEGMENTATION_DOUBLE).varint(event.segmentationDouble.size());
+            for (Map.Entry<String, Double> pair : event.segmentationDouble.entrySet()) {
+                out.string(pair.getKey()).float64(pair.getValue());
+            }
+            out.end();
+        }
+        return out.buffer.toByteArray();
+    }
+
+    /**
+     * Reads an event written by {@link #encode(Event)}.
+     * @return the event, or null if the record is truncated or has no key
+     */
+    static Event decode(final byte[] record) {
+        if (!isBinary(record)) {
+            return null;
+        }
+        final Event event = new Event();
+        final Reader in = new Reader(record, 1);
+        try {
+            while (in.position < record.length) {
+                final int tag = record[in.position++];
+                final int length = (int) in.uvarint();
+                final int end = in.position + length;
+                if (length < 0 || end > record.length) {
+                    return null;
+                }
+                switch (tag) {
+                    case TAG_KEY:
+                        event.key = in.string();
+                        break;
+                    case TAG_COUNT:
+                        event.count = (int) in.varint();
+                        break;
+                    case TAG_SUM:
+                        event.sum = in.float64();
+                        break;
+                    case TAG_DUR:
+                        event.dur = in.float64();
+                        break;
+                    case TAG_TIMESTAMP:
+                        event.timestamp = TIMESTAMP_EPOCH + in.varint();
+                        break;
+                    case TAG_HOUR:
+                        event.hour = (int) in.varint();
+                        break;
+                    case TAG_DOW:
+                        event.dow = (int) in.varint();
+                        break;
+                    case TAG_SEGMENTATION: {
+                        final int size = (int) in.varint();
+                        event.segmentation = new HashMap<>();
+                        for (int i = 0; i < size; i++) {
+                            event.segmentation.put(in.string(), in.string());
+                        }
+                        break;
+                    }
+                    case TAG_SEGMENTATION_INT: {
+                        final int size = (int) in.varint();
+                        event.segmentationInt = new HashMap<>();
+                        for (int i = 0; i < size; i++) {
+                            event.segmentationInt.put(in.string(), (int) in.varint());
+                        }
+                        break;
+                    }
+                    case TAG_SEGMENTATION_DOUBLE: {
+                        final int size = (int) in.varint();
+                        event.segmentationDouble = new HashMap<>();
+                        for (int i = 0; i < size; i++) {
+                            event.segmentationDouble.put(in.string(), in.float64());
+                        }
+                        break;
+                    }
+                    default:
+                        // written by a newer version
+                        break;
+                }
+                in.position = end;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+        return event.key != null && event.key.length() > 0 ? event : null;
+    }
+
+    private static class Writer {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        private final ByteArrayOutputStream field_ = new ByteArrayOutputStream(32);
+        private int tag_;
+
+        Writer field(final int tag) {
+            tag_ = tag;
+            field_.reset();
+            return this;
+        }
+
+        void end() {
+            buffer.write(tag_);
+            uvarint(buffer, field_.size());
+            buffer.write(field_.toByteArray(), 0, field_.size());
+        }
+
+        Writer varint(final long value) {
+            uvarint(field_, (value << 1) ^ (value >> 63));
+            return this;
+        }
+
+        Writer float64(final double value) {
+            final long bits = Double.doubleToLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                field_.write((int) (bits >>> shift));
+            }
+            return this;
+        }
+
+        Writer string(final String value) {
+            final byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+            uvarint(field_, bytes.length);
+            field_.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        private static void uvarint(final ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] data_;
+        int position;
+
+        Reader(final byte[] data, final int position) {
+            data_ = data;
+            this.position = position;
+        }
+
+        long uvarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = data_[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            return value;
+        }
+
+        long varint() {
+            final long raw = uvarint();
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+
+        double float64() {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (data_[position++] & 0xFF);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        String string() {
+            final int length = (int) uvarint();
+            final String value = new String(data_, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
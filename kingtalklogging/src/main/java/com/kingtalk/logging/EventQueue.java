@@ -2,7 +2,6 @@ package com.kingtalk.logging;
 
 import org.json.JSONArray;
 
-import java.io.UnsupportedEncodingException;
 import java.util.List;
 import java.util.Map;
 
@@ -22,7 +21,7 @@ class EventQueue {
      * @return the number of events in the local event queue
      */
     int size() {
-        return loggingStore_.events().length;
+        return loggingStore_.eventsCount();
    }
 
     /**
@@ -31,26 +30,14 @@ class EventQueue {
      * @return URL-encoded JSON string of event data from the local event queue
      */
     String events() {
-        String result;
-
-        final List<Event> events = loggingStore_.eventsList();
+        final List<Event> events = loggingStore_.takeEvents();
 
         final JSONArray eventArray = new JSONArray();
         for (Event e : events) {
             eventArray.put(e.toJSON());
         }
 
-        result = eventArray.toString();
-
-        loggingStore_.removeEvents(events);
-
-        try {
-            result = java.net.URLEncoder.encode(result, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            // should never happen because Android guarantees UTF-8 support
-        }
-
-        return result;
+        return RequestWriter.urlEncode(eventArray.toString());
     }
 
     /**
@@ -0,0 +1,420 @@
+package com.kingtalk.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed-capacity ring buffer of pending event records, backed by a memory-mapped file.
+ *
+ * Appending a record writes it after the current tail and then updates the header, so the
+ * cost does not depend on how many events are already stored. Records are read back from the
+ * head and {@link #commit(long)} releases them by moving the head past them. Records are numbered
+ * from the sequence number of the head record, which is kept in the header. Since the file is
+ * mapped, records survive the process being killed without any explicit write call.
+ *
+ * File layout: a header (magic, capacity, head, tail, count, head sequence number) followed by the data region.
+ * Each record is a 4 byte length and a 4 byte CRC32 followed by the record bytes. When a record
+ * does not fit before the end of the data region, a wrap marker is written and the record starts
+ * over at the beginning of the region. Opening the buffer walks the records from the head and
+ * drops everything from the first one that is out of bounds or fails its checksum.
+ *
+ * A record removed out of order with {@link #remove(long)} keeps its place and is only flagged
+ * in its length field; readers skip it and its space is reclaimed once the head passes it.
+ */
+class EventRingBuffer implements StorageBackend.RecordQueue {
+    static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    private static final int MAGIC = 0x4B544553;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int HEAD_OFFSET = 8;
+    private static final int TAIL_OFFSET = 12;
+    private static final int COUNT_OFFSET = 16;
+    private static final int HEAD_SEQ_OFFSET = 20;
+    private static final int HEADER_BYTES = 32;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int WRAP_MARKER = -1;
+    private static final int REMOVED_FLAG = 0x40000000;
+
+    private static final Map<String, EventRingBuffer> openBuffers_ = new HashMap<>();
+
+    private final MappedByteBuffer buffer_;
+    private final int capacity_;
+    private int head_;
+    private int tail_;
+    private int count_;
+    private long headSeq_;
+    private int removed_;//records in [head, tail) flagged as removed
+    private long bytes_;//payload bytes of the records that are not removed
+
+    /**
+     * Reads records from the head of the buffer without removing them.
+     */
+    private class Cursor {
+        private int position_;
+        private int read_;
+        private int removedRead_;
+        private long bytesRead_;
+
+        private Cursor() {
+            position_ = head_;
+        }
+
+        boolean hasNext() {
+            synchronized (EventRingBuffer.this) {
+                skipRemoved();
+                return read_ < count_;
+            }
+        }
+
+        /**
+         * Returns the sequence number of the record {@link #next()} returns.
+         */
+        long nextSeq() {
+            synchronized (EventRingBuffer.this) {
+                skipRemoved();
+                return headSeq_ + read_;
+            }
+        }
+
+        /**
+         * Returns the next record, or null if the cursor has reached the tail.
+         */
+        byte[] next() {
+            synchronized (EventRingBuffer.this) {
+                skipRemoved();
+                if (read_ >= count_) {
+                    return null;
+                }
+                final int length = seekRecord();
+                final byte[] data = new byte[length];
+                buffer_.position(HEADER_BYTES + position_ + RECORD_HEADER_BYTES);
+                buffer_.get(data);
+                position_ += RECORD_HEADER_BYTES + length;
+                read_++;
+                bytesRead_ += length;
+                return data;
+            }
+        }
+
+        /**
+         * Moves past the next record without reading it.
+         * @return false if the cursor has reached the tail
+         */
+        boolean skip() {
+            synchronized (EventRingBuffer.this) {
+                skipRemoved();
+                if (read_ >= count_) {
+                    return false;
+                }
+                final int length = seekRecord();
+                position_ += RECORD_HEADER_BYTES + length;
+                read_++;
+                bytesRead_ += length;
+                return true;
+            }
+        }
+
+        private void skipRemoved() {
+            while (read_ < count_) {
+                final int length = seekRecord();
+                if ((length & REMOVED_FLAG) == 0) {
+                    return;
+                }
+                position_ += RECORD_HEADER_BYTES + (length & ~REMOVED_FLAG);
+                read_++;
+                removedRead_++;
+            }
+        }
+
+        private int seekRecord() {
+            int length = lengthAt(position_);
+            if (length == WRAP_MARKER) {
+                position_ = 0;
+                length = lengthAt(0);
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Returns the ring buffer stored in the given file, mapping it if needed.
+     * @param file file backing the buffer, created if it does not exist
+     * @param capacity size of the data region, only used when the file is created
+     * @throws IOException if the file cannot be mapped
+     */
+    static synchronized EventRingBuffer open(final File file, final int capacity) throws IOException {
+        final String key = file.getAbsolutePath();
+        EventRingBuffer ring = openBuffers_.get(key);
+        if (ring == null) {
+            ring = new EventRingBuffer(file, capacity);
+            openBuffers_.put(key, ring);
+        }
+        return ring;
+    }
+
+    private EventRingBuffer(final File file, final int capacity) throws IOException {
+        final File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create event buffer directory " + dir);
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            int storedCapacity = 0;
+            if (raf.length() >= HEADER_BYTES && raf.readInt() == MAGIC) {
+                storedCapacity = raf.readInt();
+            }
+            final boolean valid = storedCapacity > 0 && raf.length() == HEADER_BYTES + storedCapacity;
+            capacity_ = valid ? storedCapacity : capacity;
+            buffer_ = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + capacity_);
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+
+        if (buffer_.getInt(MAGIC_OFFSET) == MAGIC && buffer_.getInt(CAPACITY_OFFSET) == capacity_) {
+            head_ = buffer_.getInt(HEAD_OFFSET);
+            tail_ = buffer_.getInt(TAIL_OFFSET);
+            count_ = buffer_.getInt(COUNT_OFFSET);
+            headSeq_ = buffer_.getLong(HEAD_SEQ_OFFSET);
+            recover();
+        } else {
+            buffer_.putInt(MAGIC_OFFSET, MAGIC);
+            buffer_.putInt(CAPACITY_OFFSET, capacity_);
+            writeHeader();
+        }
+    }
+
+    /**
+     * Walks the stored records from the head and cuts the buffer off at the first record that
+     * is out of bounds or does not match its checksum, recomputing tail and count.
+     */
+    private void recover() {
+        if (head_ < 0 || head_ >= capacity_ || count_ < 0) {
+            head_ = 0;
+            count_ = 0;
+        }
+        final CRC32 crc = new CRC32();
+        int position = head_;
+        int valid = 0;
+        removed_ = 0;
+        bytes_ = 0;
+        while (valid < count_) {
+            int field = lengthAt(position);
+            if (field == WRAP_MARKER) {
+                position = 0;
+                field = lengthAt(0);
+            }
+            final int length = field & ~REMOVED_FLAG;
+            if (field < 0 || length > capacity_ - position - RECORD_HEADER_BYTES) {
+                break;
+            }
+            final byte[] data = new byte[length];
+            buffer_.position(HEADER_BYTES + position + RECORD_HEADER_BYTES);
+            buffer_.get(data);
+            crc.reset();
+            crc.update(data);
+            if ((int) crc.getValue() != buffer_.getInt(HEADER_BYTES + position + 4)) {
+                break;
+            }
+            if ((field & REMOVED_FLAG) != 0) {
+                removed_++;
+            } else {
+                bytes_ += length;
+            }
+            position += RECORD_HEADER_BYTES + length;
+            valid++;
+        }
+        count_ = valid;
+        if (count_ == 0) {
+            head_ = 0;
+            position = 0;
+        }
+        tail_ = position;
+        writeHeader();
+        dropRemovedHead();
+    }
+
+    /**
+     * Appends a record after the tail.
+     * @param data record to add, must not be null
+     * @return the sequence number of the record, or -1 if there is not enough free space for it
+     */
+    @Override
+    public synchronized long append(final byte[] data) {
+        final int needed = RECORD_HEADER_BYTES + data.length;
+        if (count_ == 0) {
+            head_ = 0;
+            tail_ = 0;
+        }
+
+        int position;
+        if (count_ > 0 && tail_ == head_) {
+            return -1;
+        } else if (tail_ >= head_) {
+            if (capacity_ - tail_ >= needed) {
+                position = tail_;
+            } else if (head_ >= needed) {
+                if (capacity_ - tail_ >= RECORD_HEADER_BYTES) {
+                    buffer_.putInt(HEADER_BYTES + tail_, WRAP_MARKER);
+                }
+                position = 0;
+            } else {
+                return -1;
+            }
+        } else if (head_ - tail_ >= needed) {
+            position = tail_;
+        } else {
+            return -1;
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        buffer_.putInt(HEADER_BYTES + position, data.length);
+        buffer_.putInt(HEADER_BYTES + position + 4, (int) crc.getValue());
+        buffer_.position(HEADER_BYTES + position + RECORD_HEADER_BYTES);
+        buffer_.put(data);
+
+        tail_ = position + needed;
+        count_++;
+        bytes_ += data.length;
+        writeHeader();
+        return headSeq_ + count_ - 1;
+    }
+
+    /**
+     * Removes every record the given cursor has read. Nothing else may move the head between
+     * creating the cursor and committing it.
+     */
+    private void commit(final Cursor cursor) {
+        if (cursor.read_ == 0) {
+            return;
+        }
+        count_ -= cursor.read_;
+        removed_ -= cursor.removedRead_;
+        bytes_ -= cursor.bytesRead_;
+        headSeq_ += cursor.read_;
+        head_ = cursor.position_;
+        if (count_ <= 0) {
+            count_ = 0;
+            removed_ = 0;
+            bytes_ = 0;
+            head_ = 0;
+            tail_ = 0;
+        }
+        writeHeader();
+    }
+
+    /**
+     * Returns up to max records from the head, oldest first.
+     */
+    @Override
+    public synchronized List<StorageBackend.Record> peek(final int max) {
+        final Cursor cursor = new Cursor();
+        final List<StorageBackend.Record> records = new ArrayList<>(Math.min(max, count_));
+        while (records.size() < max && cursor.hasNext()) {
+            final long seq = cursor.nextSeq();
+            records.add(new StorageBackend.Record(seq, cursor.next()));
+        }
+        return records;
+    }
+
+    /**
+     * Removes all records up to upToSeq by moving the head past them.
+     */
+    @Override
+    public synchronized void commit(final long upToSeq) {
+        final Cursor cursor = new Cursor();
+        while (cursor.nextSeq() <= upToSeq && cursor.skip()) {
+            // only the head moves
+        }
+        commit(cursor);
+    }
+
+    /**
+     * Removes a single record by flagging it. The head moves past it right away if it is the oldest one.
+     */
+    @Override
+    public synchronized void remove(final long seq) {
+        if (seq < headSeq_ || seq >= headSeq_ + count_) {
+            return;
+        }
+        int position = head_;
+        for (long current = headSeq_; ; current++) {
+            int field = lengthAt(position);
+            if (field == WRAP_MARKER) {
+                position = 0;
+                field = lengthAt(0);
+            }
+            if (current == seq) {
+                if ((field & REMOVED_FLAG) == 0) {
+                    buffer_.putInt(HEADER_BYTES + position, field | REMOVED_FLAG);
+                    removed_++;
+                    bytes_ -= field;
+                    dropRemovedHead();
+                }
+                return;
+            }
+            position += RECORD_HEADER_BYTES + (field & ~REMOVED_FLAG);
+        }
+    }
+
+    private void dropRemovedHead() {
+        final Cursor cursor = new Cursor();
+        cursor.skipRemoved();
+        commit(cursor);
+    }
+
+    @Override
+    public synchronized int size() {
+        return count_ - removed_;
+    }
+
+    @Override
+    public synchronized long bytes() {
+        return bytes_;
+    }
+
+    /**
+     * Forgets the buffer, the next {@link #open(File, int)} of its file maps it again.
+     * The mapping itself is released once the buffer is garbage collected.
+     */
+    void close() {
+        synchronized (EventRingBuffer.class) {
+            openBuffers_.values().remove(this);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        headSeq_ += count_;
+        count_ = 0;
+        removed_ = 0;
+        bytes_ = 0;
+        head_ = 0;
+        tail_ = 0;
+        writeHeader();
+    }
+
+    private int lengthAt(final int position) {
+        if (capacity_ - position < RECORD_HEADER_BYTES) {
+            return WRAP_MARKER;
+        }
+        return buffer_.getInt(HEADER_BYTES + position);
+    }
+
+    private void writeHeader() {
+        buffer_.putInt(HEAD_OFFSET, head_);
+        buffer_.putInt(TAIL_OFFSET, tail_);
+        buffer_.putInt(COUNT_OFFSET, count_);
+        buffer_.putLong(HEAD_SEQ_OFFSET, headSeq_);
+    }
+}
@@ -0,0 +1,276 @@
+package com.kingtalk.logging;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decides what happens when a record is added to a full queue.
+ *
+ * A queue is full when it holds maxRecords records or when the new record would take its
+ * payload over maxBytes. Depending on the strategy either the new record is dropped (the
+ * behaviour the SDK always had), or stored records are evicted until it fits. Everything that
+ * is dropped is counted, LoggingStore keeps the totals, see {@link ILogging#droppedRequests()}.
+ *
+ * For {@link Strategy#DROP_LOWEST_PRIORITY} the policy keeps an index of the stored sequence
+ * IDs by priority, so finding the next record to evict reads no records. The index is built
+ * from the queue the first time a record is evicted and rebuilt when records were added to the
+ * queue around the policy. Records that were sent or removed in the meantime are skipped when
+ * they are about to be evicted, and the index is dropped once they make up most of it.
+ *
+ * Policies are set up with {@link ILogging#init(android.app.Activity, int, long, StorageType, EvictionPolicy, EvictionPolicy)}
+ * and shared by every LoggingStore of the process.
+ */
+public class EvictionPolicy {
+    public enum Strategy {
+        /**
+         * Keep what is stored, drop the new record
+         */
+        DROP_NEWEST,
+        /**
+         * Evict the oldest stored records
+         */
+        DROP_OLDEST,
+        /**
+         * Evict the oldest of the stored records with the lowest priority. The new record is
+         * dropped instead if its own priority is lower than that of every stored record.
+         */
+        DROP_LOWEST_PRIORITY,
+    }
+
+    /**
+     * Assigns a priority to a stored record, records with a lower value are evicted first.
+     */
+    interface Prioritizer {
+        int priority(byte[] record);
+    }
+
+    public static final long UNLIMITED_BYTES = Long.MAX_VALUE;
+
+    static final int PRIORITY_HEARTBEAT = 0;
+    static final int PRIORITY_DEFAULT = 1;
+    static final int PRIORITY_SESSION = 2;
+    static final int PRIORITY_CRASH = 3;
+
+    /**
+     * Ranks server requests by their type: session heartbeats go first, crash reports last.
+     */
+    static final Prioritizer REQUEST_PRIORITY = new Prioritizer() {
+        @Override
+        public int priority(final byte[] record) {
+            if (Request.isRecord(record)) {
+                return Request.priority(record);
+            }
+            // queued as text by an older version
+            final String request = new String(record, StandardCharsets.UTF_8);
+            if (request.contains("&crash=")) {
+                return PRIORITY_CRASH;
+            }
+            if (request.contains("&begin_session=") || request.contains("&end_session=") || request.contains("&consent=")
+                    || request.contains("&user_details=") || request.contains("&device_id=") || request.contains("&override_id=")) {
+                return PRIORITY_SESSION;
+            }
+            if (request.contains("&session_duration=") && !request.contains("&events=")) {
+                return PRIORITY_HEARTBEAT;
+            }
+            return PRIORITY_DEFAULT;
+        }
+    };
+
+    private final Strategy strategy_;
+    private final int maxRecords_;
+    private final long maxBytes_;
+    private final Prioritizer prioritizer_;
+
+    private long droppedRecords_;
+    private long droppedBytes_;
+
+    // stored sequence IDs by priority, oldest first, for DROP_LOWEST_PRIORITY
+    private final TreeMap<Integer, ArrayDeque<Long>> index_ = new TreeMap<>();
+    private StorageBackend.RecordQueue indexedQueue_;
+    private int indexed_;
+
+    /**
+     * @param strategy what to drop once the queue is full
+     * @param maxRecords maximum number of stored records
+     * @param maxBytes maximum total size of the stored records, {@link #UNLIMITED_BYTES} for no limit
+     * @param prioritizer ranks records for {@link Strategy#DROP_LOWEST_PRIORITY}, if null all records rank the same
+     */
+    EvictionPolicy(final Strategy strategy, final int maxRecords, final long maxBytes, final Prioritizer prioritizer) {
+        if (strategy == null) {
+            throw new IllegalArgumentException("strategy must not be null");
+        }
+        if (maxRecords <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("queue limits must be positive");
+        }
+        strategy_ = strategy;
+        maxRecords_ = maxRecords;
+        maxBytes_ = maxBytes;
+        prioritizer_ = prioritizer;
+    }
+
+    /**
+     * @param strategy what to drop once the queue is full
+     * @param maxRecords maximum number of stored records
+     * @param maxBytes maximum total size of the stored records, {@link #UNLIMITED_BYTES} for no limit
+     */
+    public EvictionPolicy(final Strategy strategy, final int maxRecords, final long maxBytes) {
+        this(strategy, maxRecords, maxBytes, null);
+    }
+
+    public EvictionPolicy(final Strategy strategy, final int maxRecords) {
+        this(strategy, maxRecords, UNLIMITED_BYTES, null);
+    }
+
+    /**
+     * Returns a policy with the same limits that ranks records with the given prioritizer,
+     * this one if it has a prioritizer already.
+     */
+    EvictionPolicy rankedBy(final Prioritizer prioritizer) {
+        return prioritizer_ != null ? this : new EvictionPolicy(strategy_, maxRecords_, maxBytes_, prioritizer);
+    }
+
+    /**
+     * Appends a record to the queue, evicting stored records first if the policy asks for it.
+     * @return the sequence ID of the stored record, or -1 if the record itself was dropped
+     */
+    synchronized long offer(final StorageBackend.RecordQueue queue, final byte[] record) throws IOException {
+        if (record.length > maxBytes_) {
+            return drop(record);
+        }
+        while (queue.size() >= maxRecords_ || queue.bytes() + record.length > maxBytes_) {
+            if (!evictFor(queue, record)) {
+                return drop(record);
+            }
+        }
+        long seq;
+        while ((seq = queue.append(record)) < 0) {
+            // the queue itself ran out of room, which only evicting its oldest record gives back
+            if (!evictOldest(queue, record)) {
+                return drop(record);
+            }
+        }
+        if (strategy_ == Strategy.DROP_LOWEST_PRIORITY && indexedQueue_ == queue) {
+            if (indexed_ >= 2 * queue.size() + 16) {
+                // mostly records that were sent since, build it again once it is needed
+                indexedQueue_ = null;
+                index_.clear();
+                indexed_ = 0;
+            } else {
+                addToIndex(priority(record), seq);
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * Evicts one stored record to make room for the given one.
+     * @return false if nothing should be evicted and the new record has to be dropped instead
+     */
+    private boolean evictFor(final StorageBackend.RecordQueue queue, final byte[] record) throws IOException {
+        if (strategy_ == Strategy.DROP_LOWEST_PRIORITY) {
+            return evictLowestPriority(queue, record);
+        }
+        return evictOldest(queue, record);
+    }
+
+    private boolean evictOldest(final StorageBackend.RecordQueue queue, final byte[] record) throws IOException {
+        if (strategy_ == Strategy.DROP_NEWEST || queue.size() == 0) {
+            return false;
+        }
+        final List<StorageBackend.Record> oldest = queue.peek(1);
+        if (oldest.isEmpty() || (strategy_ == Strategy.DROP_LOWEST_PRIORITY && priority(record) < priority(oldest.get(0).data))) {
+            return false;
+        }
+        return evict(queue, oldest.get(0).seq);
+    }
+
+    private boolean evictLowestPriority(final StorageBackend.RecordQueue queue, final byte[] record) throws IOException {
+        if (queue.size() == 0) {
+            return false;
+        }
+        if (indexedQueue_ != queue || indexed_ < queue.size()) {
+            rebuildIndex(queue);
+        }
+        while (!index_.isEmpty()) {
+            final Map.Entry<Integer, ArrayDeque<Long>> lowest = index_.firstEntry();
+            // the index holds every stored record, so nothing stored ranks lower than this
+            if (priority(record) < lowest.getKey()) {
+                return false;
+            }
+            final long seq = lowest.getValue().pollFirst();
+            if (lowest.getValue().isEmpty()) {
+                index_.remove(lowest.getKey());
+            }
+            indexed_--;
+            if (evict(queue, seq)) {
+                return true;
+            }
+            // sent or removed since it was indexed
+        }
+        rebuildIndex(queue);
+        return !index_.isEmpty() && evictLowestPriority(queue, record);
+    }
+
+    /**
+     * Removes a stored record and counts it as dropped.
+     * @return false if there was no record with that ID
+     */
+    private boolean evict(final StorageBackend.RecordQueue queue, final long seq) throws IOException {
+        final int sizeBefore = queue.size();
+        final long bytesBefore = queue.bytes();
+        queue.remove(seq);
+        if (queue.size() == sizeBefore) {
+            return false;
+        }
+        droppedRecords_++;
+        droppedBytes_ += bytesBefore - queue.bytes();
+        return true;
+    }
+
+    private void rebuildIndex(final StorageBackend.RecordQueue queue) throws IOException {
+        index_.clear();
+        indexed_ = 0;
+        indexedQueue_ = queue;
+        for (StorageBackend.Record stored : queue.peek(Integer.MAX_VALUE)) {
+            addToIndex(priority(stored.data), stored.seq);
+        }
+    }
+
+    private void addToIndex(final int priority, final long seq) {
+        ArrayDeque<Long> seqs = index_.get(priority);
+        if (seqs == null) {
+            seqs = new ArrayDeque<>();
+            index_.put(priority, seqs);
+        }
+        seqs.addLast(seq);
+        indexed_++;
+    }
+
+    private int priority(final byte[] record) {
+        return prioritizer_ == null ? PRIORITY_DEFAULT : prioritizer_.priority(record);
+    }
+
+    private long drop(final byte[] record) {
+        droppedRecords_++;
+        droppedBytes_ += record.length;
+        return -1;
+    }
+
+    /**
+     * Returns how many records were dropped or evicted since the process started.
+     */
+    synchronized long droppedRecords() {
+        return droppedRecords_;
+    }
+
+    /**
+     * Returns the total size of the records that were dropped or evicted since the process started.
+     */
+    synchronized long droppedBytes() {
+        return droppedBytes_;
+    }
+}
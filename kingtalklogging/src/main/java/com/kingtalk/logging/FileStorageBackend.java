@@ -0,0 +1,205 @@
+package com.kingtalk.logging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Storage backend built on plain files only, so it also runs on a desktop JVM.
+ *
+ * Values are held in memory and written as snapshot files, replaced atomically through a
+ * rename on every {@link #apply(Map)}. The {@link StorageBackend#HOT_KEYS} have a snapshot file
+ * of their own and only the files holding a changed key are rewritten. The events queue is an
+ * {@link EventRingBuffer}, every other queue is a {@link RequestLog} in its own directory.
+ */
+class FileStorageBackend implements StorageBackend {
+    private static final String VALUES_FILE_NAME = "values";
+    private static final String HOT_VALUES_FILE_NAME = "values.hot";
+    private static final String EVENTS_FILE_NAME = "events.ring";
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_BOOLEAN = 2;
+
+    private final File dir_;
+    private final Map<String, Object> values_ = new HashMap<>();
+    private final Map<String, RecordQueue> queues_ = new HashMap<>();
+    private long bytesWritten_;
+
+    /**
+     * @param dir directory holding the backend files, created if it does not exist
+     * @throws IOException if the directory or the values file cannot be read
+     */
+    FileStorageBackend(final File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create storage directory " + dir);
+        }
+        dir_ = dir;
+        readValues(VALUES_FILE_NAME);
+        readValues(HOT_VALUES_FILE_NAME);
+    }
+
+    /**
+     * Opens the file-backed queue with the given name inside dir.
+     */
+    static RecordQueue openQueue(final File dir, final String name) throws IOException {
+        if (QUEUE_EVENTS.equals(name)) {
+            return EventRingBuffer.open(new File(dir, EVENTS_FILE_NAME), EventRingBuffer.DEFAULT_CAPACITY);
+        }
+        return RequestLog.open(new File(dir, name));
+    }
+
+    @Override
+    public synchronized String getString(final String key, final String defValue) {
+        final Object value = values_.get(key);
+        return value instanceof String ? (String) value : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(final String key, final boolean defValue) {
+        final Object value = values_.get(key);
+        return value instanceof Boolean ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public synchronized Map<String, Object> getAll() {
+        return new HashMap<>(values_);
+    }
+
+    @Override
+    public synchronized void apply(final Map<String, Object> changes) {
+        boolean hot = false;
+        boolean cold = false;
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                values_.remove(change.getKey());
+            } else {
+                values_.put(change.getKey(), change.getValue());
+            }
+            if (HOT_KEYS.contains(change.getKey())) {
+                hot = true;
+            } else {
+                cold = true;
+            }
+        }
+        if (hot) {
+            writeValues(HOT_VALUES_FILE_NAME, true);
+        }
+        if (cold) {
+            writeValues(VALUES_FILE_NAME, false);
+        }
+    }
+
+    @Override
+    public void commit(final Map<String, Object> changes) {
+        apply(changes);
+    }
+
+    @Override
+    public void flush() {
+        // every apply is already written and synced
+    }
+
+    @Override
+    public synchronized RecordQueue queue(final String name) throws IOException {
+        RecordQueue queue = queues_.get(name);
+        if (queue == null) {
+            queue = openQueue(dir_, name);
+            queues_.put(name, queue);
+        }
+        return queue;
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        values_.clear();
+        writeValues(HOT_VALUES_FILE_NAME, true);
+        writeValues(VALUES_FILE_NAME, false);
+        for (RecordQueue queue : queues_.values()) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Returns the number of bytes written to value snapshot files so far.
+     */
+    synchronized long bytesWritten() {
+        return bytesWritten_;
+    }
+
+    private void readValues(final String fileName) throws IOException {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir_, fileName))));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                if (in.readByte() == TYPE_BOOLEAN) {
+                    values_.put(key, in.readBoolean());
+                } else {
+                    final byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    values_.put(key, new String(bytes, StandardCharsets.UTF_8));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the values of one partition to a temporary file and renames it over the
+     * partition's file, so a reader never sees a half written snapshot.
+     */
+    private void writeValues(final String fileName, final boolean hot) {
+        final File target = new File(dir_, fileName);
+        final File temp = new File(dir_, fileName + ".tmp");
+        final Map<String, Object> partition = new HashMap<>();
+        for (Map.Entry<String, Object> entry : values_.entrySet()) {
+            if (HOT_KEYS.contains(entry.getKey()) == hot) {
+                partition.put(entry.getKey(), entry.getValue());
+            }
+        }
+        try {
+            final FileOutputStream fos = new FileOutputStream(temp);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            try {
+                out.writeInt(partition.size());
+                for (Map.Entry<String, Object> entry : partition.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    if (entry.getValue() instanceof Boolean) {
+                        out.writeByte(TYPE_BOOLEAN);
+                        out.writeBoolean((Boolean) entry.getValue());
+                    } else {
+                        final byte[] bytes = entry.getValue().toString().getBytes(StandardCharsets.UTF_8);
+                        out.writeByte(TYPE_STRING);
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                }
+                out.flush();
+                fos.getFD().sync();
+                bytesWritten_ += out.size();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(target)) {
+                throw new IOException("Could not replace " + target);
+            }
+        } catch (IOException e) {
+            // the in-memory values stay authoritative, the next apply writes them again
+            temp.delete();
+        }
+    }
+}
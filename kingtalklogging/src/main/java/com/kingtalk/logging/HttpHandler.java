@@ -1,7 +1,6 @@
 package com.kingtalk.logging;
 
 import android.app.Activity;
-import android.os.AsyncTask;
 import android.util.Log;
 
 import org.json.JSONException;
@@ -15,24 +14,37 @@ import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
+import java.util.concurrent.Callable;
 
 import javax.net.ssl.HttpsURLConnection;
 
-class HttpHandler extends AsyncTask<String, String, ILogging>{
+/**
+ * Loads the configuration and initializes Logging with it, run on the network lane of the {@link SdkScheduler}
+ */
+class HttpHandler implements Callable<ILogging> {
 
     private Activity activity;
     private int eventQueueSize;
     private long timeDelay;
-    HttpHandler(Activity activity, int eventQueueSize, long timeDelay) {
+    private StorageType storageType;
+    private EvictionPolicy requestPolicy;
+    private EvictionPolicy eventPolicy;
+    private String configUrl;
+    HttpHandler(Activity activity, int eventQueueSize, long timeDelay, StorageType storageType,
+                EvictionPolicy requestPolicy, EvictionPolicy eventPolicy, String configUrl) {
         this.activity = activity;
         this.eventQueueSize = eventQueueSize;
         this.timeDelay = timeDelay;
+        this.storageType = storageType;
+        this.requestPolicy = requestPolicy;
+        this.eventPolicy = eventPolicy;
+        this.configUrl = configUrl;
     }
 
     @Override
-    protected ILogging doInBackground(String... strings) {
+    public ILogging call() {
         try {
-            URL url = new URL(strings[0]);
+            URL url = new URL(configUrl);
             HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
             conn.setRequestMethod("GET");
             InputStream in = new BufferedInputStream(conn.getInputStream());
@@ -44,7 +56,7 @@ class HttpHandler extends AsyncTask<String, String, ILogging>{
                     return null;
                 }
                 object.getString("url");
-                Logging.init(eventQueueSize,timeDelay);
+                Logging.init(eventQueueSize,timeDelay,storageType,requestPolicy,eventPolicy);
                 Logging.onCreate(activity);
                 Logging.sharedInstance().init(activity.getApplicationContext(),"https://us-try.count.ly","28fc3e2e0c17e003edad1c3b643a21d3837c84a3");
 //                Logging.sharedInstance().init(activity.getApplicationContext(),object.getString("url"),object.getString("app_key"));
@@ -74,21 +86,6 @@ class HttpHandler extends AsyncTask<String, String, ILogging>{
         }
     }
 
-    @Override
-    protected void onPreExecute() {
-        super.onPreExecute();
-    }
-
-    @Override
-    protected void onPostExecute(ILogging iLogging) {
-        super.onPostExecute(iLogging);
-    }
-
-    @Override
-    protected void onProgressUpdate(String... values) {
-        super.onProgressUpdate(values);
-    }
-
     private String convertStreamToString(InputStream is) {
         BufferedReader reader = new BufferedReader(new InputStreamReader(is));
         StringBuilder sb = new StringBuilder();
@@ -25,9 +25,41 @@ public interface ILogging {
      * @return ILogging
      */
     static ILogging init(final Activity activity, final int eventQueueSize, final long timeDelay) {
-        HttpHandler handler = new HttpHandler(activity,eventQueueSize,timeDelay);
+        return init(activity, eventQueueSize, timeDelay, StorageType.PREFERENCES);
+    }
+
+    /**
+     * Initialize logging with size of queue, delay time and where the data is stored
+     * @param activity       your activity
+     * @param eventQueueSize size of queue to send event
+     * @param timeDelay      delay time to send event
+     * @param storageType    where pending requests, events and configuration are stored,
+     *                       only used by the first init of the process
+     * @return ILogging
+     */
+    static ILogging init(final Activity activity, final int eventQueueSize, final long timeDelay, final StorageType storageType) {
+        return init(activity, eventQueueSize, timeDelay, storageType, null, null);
+    }
+
+    /**
+     * Initialize logging with size of queue, delay time, where the data is stored and what is
+     * dropped once a queue is full
+     * @param activity       your activity
+     * @param eventQueueSize size of queue to send event
+     * @param timeDelay      delay time to send event
+     * @param storageType    where pending requests, events and configuration are stored,
+     *                       only used by the first init of the process
+     * @param requestPolicy  what to drop once the request queue is full, null for the default
+     *                       of dropping new requests past 1000
+     * @param eventPolicy    what to drop once the event queue is full, null for the default
+     *                       of dropping new events past 100
+     * @return ILogging
+     */
+    static ILogging init(final Activity activity, final int eventQueueSize, final long timeDelay, final StorageType storageType,
+                         final EvictionPolicy requestPolicy, final EvictionPolicy eventPolicy) {
+        HttpHandler handler = new HttpHandler(activity,eventQueueSize,timeDelay,storageType,requestPolicy,eventPolicy,DOMAIN);
         try {
-            return handler.execute(DOMAIN).get();
+            return SdkScheduler.shared().submit(SdkScheduler.Lane.NETWORK, handler).get();
         } catch (ExecutionException e) {
             e.printStackTrace();
             return null;
@@ -37,6 +69,49 @@ public interface ILogging {
         }
     }
 
+    /**
+     * Returns how many requests were dropped because the request queue was full, since the app was installed
+     */
+    long droppedRequests();
+
+    /**
+     * Returns how many events were dropped because the event queue was full, since the app was installed
+     */
+    long droppedEvents();
+
+    /**
+     * Set a listener that is told when sending to the server is put off after a failure and
+     * when it recovers
+     * @param listener the listener, null to remove it
+     * @return ILogging
+     */
+    ILogging setRetryListener(RetryListener listener);
+
+    /**
+     * Set whether large HTTP POST bodies are sent gzipped. Only enable it if the server accepts
+     * such bodies; if it responds with 415 to one, plain bodies are sent from then on.
+     * @param isItEnabled the flag for the new status, set "true" to gzip bodies
+     * @return ILogging
+     */
+    ILogging setGzipEnabled(boolean isItEnabled);
+
+    /**
+     * Set whether a deep request queue is sent to the server's bulk endpoint, many requests
+     * per connection, instead of one request per connection. Enabled by default.
+     * @param isItEnabled the flag for the new status, set "false" to send every request on its own
+     * @return ILogging
+     */
+    ILogging setBulkModeEnabled(boolean isItEnabled);
+
+    /**
+     * Set how many requests are sent to the server at the same time. Requests of different kinds,
+     * like crash reports, sessions and events, go out side by side, while the order is kept
+     * among those that depend on each other. Defaults to 2.
+     * @param maxParallelRequests the in-flight limit, between 1 and 5
+     * @return ILogging
+     */
+    ILogging setMaxParallelRequests(int maxParallelRequests);
+
     /**
      * Send a custom event with key, segmentation and count
      * @param key the name of the custom event, required, must not be the empty string
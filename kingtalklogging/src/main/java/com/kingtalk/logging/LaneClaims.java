@@ -0,0 +1,103 @@
+package com.kingtalk.logging;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lets several ConnectionProcessors send the request queue at the same time without breaking
+ * the order within a lane.
+ *
+ * A processor takes its next requests with {@link #take(LoggingStore, int)}, which claims their
+ * lanes until {@link #release(List)}. No other processor sends a request of a claimed lane
+ * meanwhile. A lane the server failed on stays closed until every processor is done, the next
+ * round tries it again.
+ *
+ * Requests that may be merged into the one queued before them are added with
+ * {@link #add(LoggingStore, Request)}, so that a request is never merged while it is being sent.
+ */
+class LaneClaims {
+    private final Set<Request.Lane> claimed_ = EnumSet.noneOf(Request.Lane.class);
+    private final Set<Request.Lane> failed_ = EnumSet.noneOf(Request.Lane.class);
+    private final List<Request> failedRequests_ = new ArrayList<>();
+    private boolean delivered_;
+    private int workers_;
+
+    /**
+     * Called by a processor before it takes requests. The first one starts a new round.
+     */
+    synchronized void workerStarted() {
+        if (workers_++ == 0) {
+            failed_.clear();
+            failedRequests_.clear();
+            delivered_ = false;
+        }
+    }
+
+    /**
+     * Called by a processor when it is done.
+     * @return the requests the server failed on, if this was the last processor of a round in
+     *         which the server took other requests; otherwise an empty list
+     */
+    synchronized List<Request> workerFinished() {
+        final List<Request> failed = new ArrayList<>();
+        if (--workers_ == 0 && delivered_) {
+            failed.addAll(failedRequests_);
+        }
+        return failed;
+    }
+
+    synchronized int workers() {
+        return workers_;
+    }
+
+    /**
+     * Returns up to max of the oldest requests of lanes that are neither claimed nor failed,
+     * see {@link LoggingStore#nextConnections(Set, int)}, and claims their lanes.
+     */
+    synchronized List<Request> take(final LoggingStore store, final int max) {
+        final Set<Request.Lane> unavailable = EnumSet.copyOf(failed_);
+        unavailable.addAll(claimed_);
+        final List<Request> requests = store.nextConnections(unavailable, max);
+        for (Request request : requests) {
+            claimed_.add(request.type.lane);
+        }
+        return requests;
+    }
+
+    /**
+     * Adds a request to the store. It may be merged into the request added before it, see
+     * {@link LoggingStore#addConnection(Request, boolean)}, unless a processor is sending its lane
+     * or failed on it in the running round.
+     */
+    synchronized void add(final LoggingStore store, final Request request) {
+        final Request.Lane lane = request.type.lane;
+        store.addConnection(request, !claimed_.contains(lane) && (workers_ == 0 || !failed_.contains(lane)));
+    }
+
+    /**
+     * Gives up the lanes of requests that were taken. Call it only after they were removed from
+     * the store or marked failed.
+     */
+    synchronized void release(final List<Request> requests) {
+        for (Request request : requests) {
+            claimed_.remove(request.type.lane);
+        }
+    }
+
+    /**
+     * Closes the lane of a request the server failed on for the rest of the round.
+     */
+    synchronized void failed(final Request request) {
+        failed_.add(request.type.lane);
+        failedRequests_.add(request);
+    }
+
+    /**
+     * Notes that the server took requests in this round.
+     */
+    synchronized void delivered() {
+        delivered_ = true;
+    }
+}
@@ -0,0 +1,99 @@
+package com.kingtalk.logging;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Moves the request and event queues of older SDK versions, stored as ":::" joined strings in
+ * the LOGGING_STORE preferences, into the queues of the current storage backend.
+ *
+ * The joined strings are walked in place and records are appended one by one, so no second
+ * copy of a queue is built. After every chunk the offset reached is committed next to the
+ * legacy value, so a migration that is cut short resumes where it stopped and repeats at most
+ * one chunk. Both legacy values and the offsets are removed with a single commit at the end.
+ */
+class LegacyQueueMigrator implements Runnable {
+    static final String CONNECTIONS_PREFERENCE = "CONNECTIONS";
+    static final String EVENTS_PREFERENCE = "EVENTS";
+    private static final String OFFSET_SUFFIX = "_MIGRATED_OFFSET";
+    private static final String DELIMITER = ":::";
+    static final int CHUNK_RECORDS = 50;
+
+    private final SharedPreferences legacy_;
+    private final StorageBackend.RecordQueue connections_;
+    private final StorageBackend.RecordQueue events_;
+
+    LegacyQueueMigrator(final SharedPreferences legacy, final StorageBackend.RecordQueue connections, final StorageBackend.RecordQueue events) {
+        legacy_ = legacy;
+        connections_ = connections;
+        events_ = events;
+    }
+
+    /**
+     * Returns true if the preference with the given key belongs to a legacy queue or its migration.
+     */
+    static boolean isLegacyKey(final String key) {
+        return CONNECTIONS_PREFERENCE.equals(key) || EVENTS_PREFERENCE.equals(key)
+                || (CONNECTIONS_PREFERENCE + OFFSET_SUFFIX).equals(key) || (EVENTS_PREFERENCE + OFFSET_SUFFIX).equals(key);
+    }
+
+    /**
+     * Returns true if there is anything left to migrate.
+     */
+    static boolean isNeeded(final SharedPreferences legacy) {
+        return legacy.contains(CONNECTIONS_PREFERENCE) || legacy.contains(EVENTS_PREFERENCE);
+    }
+
+    /**
+     * Runs the migration on the io lane of the {@link SdkScheduler}, so that it does not delay SDK initialization.
+     */
+    void start() {
+        SdkScheduler.shared().execute(SdkScheduler.Lane.IO, this);
+    }
+
+    @Override
+    public void run() {
+        try {
+            migrate(CONNECTIONS_PREFERENCE, connections_);
+            migrate(EVENTS_PREFERENCE, events_);
+            legacy_.edit()
+                    .remove(CONNECTIONS_PREFERENCE)
+                    .remove(EVENTS_PREFERENCE)
+                    .remove(CONNECTIONS_PREFERENCE + OFFSET_SUFFIX)
+                    .remove(EVENTS_PREFERENCE + OFFSET_SUFFIX)
+                    .commit();
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.d(Logging.TAG, "Migrated the stored queues of a previous version");
+            }
+        } catch (IOException e) {
+            // the legacy values stay, the next launch continues from the last committed offset
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.w(Logging.TAG, "Could not migrate the stored queues of a previous version", e);
+            }
+        }
+    }
+
+    private void migrate(final String key, final StorageBackend.RecordQueue queue) throws IOException {
+        final String joined = legacy_.getString(key, "");
+        final String offsetKey = key + OFFSET_SUFFIX;
+        int start = legacy_.getInt(offsetKey, 0);
+        int inChunk = 0;
+        while (start < joined.length()) {
+            int end = joined.indexOf(DELIMITER, start);
+            if (end < 0) {
+                end = joined.length();
+            }
+            if (end > start) {
+                queue.append(joined.substring(start, end).getBytes(StandardCharsets.UTF_8));
+            }
+            start = end + DELIMITER.length();
+            if (++inChunk == CHUNK_RECORDS) {
+                legacy_.edit().putInt(offsetKey, start).commit();
+                inChunk = 0;
+            }
+        }
+    }
+}
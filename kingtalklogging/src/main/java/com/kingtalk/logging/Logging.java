@@ -17,14 +17,11 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import static com.kingtalk.logging.LoggingStarRating.STAR_RATING_EVENT_KEY;
@@ -54,6 +51,12 @@ class Logging implements ILogging {
      */
     static final String CONSENT_BROADCAST = "com.kingtalk.logging.Logging.CONSENT_BROADCAST";
 
+    /**
+     * Upper limit for {@link #setMaxParallelRequests(int)}. At most one request per kind of
+     * request is sent at a time, so more would never be used.
+     */
+    public static final int MAX_PARALLEL_REQUESTS = 5;
+
     /**
      * Determines how many custom events can be queued locally before
      * an attempt is made to submit them to a Count.ly server.
@@ -63,6 +66,18 @@ class Logging implements ILogging {
      * How often onTimer() is called.
      */
     private static long timeDelay = 5;
+    /**
+     * Where LoggingStore keeps its data, read when the first store is created.
+     */
+    private static StorageType storageType = StorageType.PREFERENCES;
+    /**
+     * What to drop once the request queue is full. By default new requests are ignored past 1000.
+     */
+    private static EvictionPolicy requestEvictionPolicy = new EvictionPolicy(EvictionPolicy.Strategy.DROP_NEWEST, 1000);
+    /**
+     * What to drop once the event queue is full. By default new events are ignored past 100.
+     */
+    private static EvictionPolicy eventEvictionPolicy = new EvictionPolicy(EvictionPolicy.Strategy.DROP_NEWEST, 100);
 
     static List<String> publicKeyPinCertificates;
     static List<String> certificatePinCertificates;
@@ -87,8 +102,7 @@ class Logging implements ILogging {
     }
 
     private ConnectionQueue connectionQueue_;
-    @SuppressWarnings("FieldCanBeLocal")
-    private final ScheduledExecutorService timerService_;
+    private ScheduledFuture<?> timerTask_;
     private EventQueue eventQueue_;
     private long prevSessionDurationStartTime_;
     private int activityCount_;
@@ -109,6 +123,9 @@ class Logging implements ILogging {
 
     //overrides
     private boolean isHttpPostForced = false;//when true, all data sent to the server will be sent using HTTP POST
+    private boolean isBulkModeEnabled = true;//when true, a deep request queue is sent in bulk requests
+    private boolean isGzipEnabled = false;//when true, large HTTP POST bodies are sent gzipped
+    private int maxParallelRequests = 2;//how many requests are sent to the server at the same time
 
     //app crawlers
     private boolean shouldIgnoreCrawlers = true;//ignore app crawlers by default
@@ -198,8 +215,7 @@ class Logging implements ILogging {
     Logging() {
         connectionQueue_ = new ConnectionQueue();
         Logging.userData = new UserData(connectionQueue_);
-        timerService_ = Executors.newSingleThreadScheduledExecutor();
-        timerService_.scheduleWithFixedDelay(() -> onTimer(), timeDelay, timeDelay, TimeUnit.SECONDS);
+        startTimer();
 
         initConsent();
         automaticTrackingShouldUseShortName = false;
@@ -378,6 +394,10 @@ class Logging implements ILogging {
             connectionQueue_.setRequestHeaderCustomValues(requestHeaderCustomValues);
 
             eventQueue_ = new EventQueue(loggingStore);
+            if (timerTask_ == null) {
+                // stopped by halt
+                startTimer();
+            }
 
             //do star rating related things
 
@@ -540,6 +560,13 @@ class Logging implements ILogging {
         return this;
     }
 
+    /**
+     * Runs {@link #onTimer()} every timeDelay seconds on the timer lane.
+     */
+    private void startTimer() {
+        timerTask_ = SdkScheduler.shared().scheduleWithFixedDelay(() -> onTimer(), TimeUnit.SECONDS.toMillis(timeDelay), TimeUnit.SECONDS.toMillis(timeDelay));
+    }
+
     /**
      * Immediately disables session &amp; event tracking and clears any stored session &amp; event data.
      * This API is useful if your app has a tracking opt-out switch, and you want to immediately
@@ -552,10 +579,17 @@ class Logging implements ILogging {
             Log.i(Logging.TAG, "Halting Logging!");
         }
         eventQueue_ = null;
+        if (timerTask_ != null) {
+            timerTask_.cancel(false);
+            timerTask_ = null;
+        }
+        connectionQueue_.cancelDelayedTasks();
         final LoggingStore loggingStore = connectionQueue_.getLoggingStore();
         if (loggingStore != null) {
             loggingStore.clear();
         }
+        // nothing is left to do in the background, init starts new threads when they are needed
+        SdkScheduler.shutdownShared();
         connectionQueue_.setContext(null);
         connectionQueue_.setServerURL(null);
         connectionQueue_.setAppKey(null);
@@ -663,6 +697,8 @@ class Logging implements ILogging {
         if (eventQueue_.size() > 0) {
             connectionQueue_.recordEvents(eventQueue_.events());
         }
+
+        connectionQueue_.getLoggingStore().flush();
     }
 
     /**
@@ -1351,6 +1387,10 @@ class Logging implements ILogging {
                     Logging.sharedInstance().connectionQueue_.sendCrashReport(sw.toString(), false, false);
                 }
 
+                if (Logging.sharedInstance().connectionQueue_.getLoggingStore() != null) {
+                    Logging.sharedInstance().connectionQueue_.getLoggingStore().flush();
+                }
+
                 //if there was another handler before
                 if(oldHandler != null){
                     //notify it also
@@ -1633,6 +1673,7 @@ class Logging implements ILogging {
         }
 
         if(isInitialized()){
+            connectionQueue_.getLoggingStore().flush();
             connectionQueue_.tick();
         }
     }
@@ -1694,29 +1735,14 @@ class Logging implements ILogging {
     /**
      * Utility method to return a current hour of the day that can be used in the Count.ly API.
      */
-    static int currentHour(){return Calendar.getInstance().get(Calendar.HOUR_OF_DAY); }
+    static int currentHour(){return RequestWriter.hourOfDay(System.currentTimeMillis()); }
 
     /**
-     * Utility method to return a current day of the week that can be used in the Count.ly API.
+     * Utility method to return a current day of the week that can be used in the Count.ly API,
+     * 0 for Sunday to 6 for Saturday.
      */
-    @SuppressLint("SwitchIntDef")
     static int currentDayOfWeek(){
-        int day = Calendar.getInstance().get(Calendar.DAY_OF_WEEK);
-        switch (day) {
-            case Calendar.MONDAY:
-                return 1;
-            case Calendar.TUESDAY:
-                return 2;
-            case Calendar.WEDNESDAY:
-                return 3;
-            case Calendar.THURSDAY:
-                return 4;
-            case Calendar.FRIDAY:
-                return 5;
-            case Calendar.SATURDAY:
-                return 6;
-        }
-        return 0;
+        return RequestWriter.dayOfWeek(System.currentTimeMillis());
     }
 
     /**
@@ -1972,6 +1998,87 @@ class Logging implements ILogging {
         return isHttpPostForced;
     }
 
+    /**
+     * Set whether a deep request queue is sent to the server's bulk endpoint, many requests
+     * per connection, instead of one request per connection. Enabled by default.
+     * @param isItEnabled the flag for the new status, set "false" to send every request on its own
+     */
+    @Override
+    public synchronized Logging setBulkModeEnabled(boolean isItEnabled) {
+
+        if (Logging.sharedInstance().isLoggingEnabled()) {
+            Log.d(Logging.TAG, "Setting if bulk mode is enabled: [" + isItEnabled + "]");
+        }
+
+        isBulkModeEnabled = isItEnabled;
+        return this;
+    }
+
+    boolean isBulkModeEnabled() {
+        return isBulkModeEnabled;
+    }
+
+    /**
+     * Set whether large HTTP POST bodies, like crash reports and bulk requests, are sent gzipped
+     * with "Content-Encoding: gzip". Only enable it if the server accepts such bodies; if it
+     * responds with 415 to one, plain bodies are sent from then on.
+     * @param isItEnabled the flag for the new status, set "true" to gzip bodies
+     */
+    @Override
+    public synchronized Logging setGzipEnabled(boolean isItEnabled) {
+
+        if (Logging.sharedInstance().isLoggingEnabled()) {
+            Log.d(Logging.TAG, "Setting if gzip is enabled: [" + isItEnabled + "]");
+        }
+
+        isGzipEnabled = isItEnabled;
+        return this;
+    }
+
+    boolean isGzipEnabled() {
+        return isGzipEnabled;
+    }
+
+    /**
+     * Set how many requests are sent to the server at the same time. Requests of different kinds,
+     * like crash reports, sessions and events, go out side by side, while the order is kept
+     * among those that depend on each other. Defaults to 2.
+     * @param maxParallelRequests the in-flight limit, between 1 and {@link #MAX_PARALLEL_REQUESTS}
+     */
+    @Override
+    public synchronized Logging setMaxParallelRequests(int maxParallelRequests) {
+
+        if (Logging.sharedInstance().isLoggingEnabled()) {
+            Log.d(Logging.TAG, "Setting the maximum of parallel requests: [" + maxParallelRequests + "]");
+        }
+
+        if (maxParallelRequests < 1 || maxParallelRequests > MAX_PARALLEL_REQUESTS) {
+            throw new IllegalArgumentException("maxParallelRequests must be between 1 and " + MAX_PARALLEL_REQUESTS);
+        }
+        this.maxParallelRequests = maxParallelRequests;
+        return this;
+    }
+
+    synchronized int getMaxParallelRequests() {
+        return maxParallelRequests;
+    }
+
+    /**
+     * Set a listener that is told when sending to the server is put off after a failure and
+     * when it recovers, e.g. to collect metrics.
+     * @param listener the listener, null to remove it
+     */
+    @Override
+    public synchronized Logging setRetryListener(RetryListener listener) {
+
+        if (Logging.sharedInstance().isLoggingEnabled()) {
+            Log.d(Logging.TAG, "Setting retry listener");
+        }
+
+        connectionQueue_.getRetryBackoff().setListener(listener);
+        return this;
+    }
+
     private void checkIfDeviceIsAppCrawler(){
         String deviceName = DeviceInfo.getDevice();
 
@@ -2525,7 +2632,7 @@ class Logging implements ILogging {
     // for unit testing
     ConnectionQueue getConnectionQueue() { return connectionQueue_; }
     void setConnectionQueue(final ConnectionQueue connectionQueue) { connectionQueue_ = connectionQueue; }
-    ExecutorService getTimerService() { return timerService_; }
+    ScheduledFuture<?> getTimerTask() { return timerTask_; }
     EventQueue getEventQueue() { return eventQueue_; }
     void setEventQueue(final EventQueue eventQueue) { eventQueue_ = eventQueue; }
     long getPrevSessionDurationStartTime() { return prevSessionDurationStartTime_; }
@@ -2589,8 +2696,55 @@ class Logging implements ILogging {
     }
 
     static void init(final int evenQueueSize, final long timeDelay){
+        init(evenQueueSize, timeDelay, StorageType.PREFERENCES);
+    }
+
+    /**
+     * Same as {@link #init(int, long)}, additionally selecting the storage backend.
+     * Must be called before the SDK is initialized, the backend is opened once per process.
+     */
+    static void init(final int evenQueueSize, final long timeDelay, final StorageType storageType){
         Logging.eventQueueSize = evenQueueSize;
         Logging.timeDelay = timeDelay;
+        Logging.storageType = storageType == null ? StorageType.PREFERENCES : storageType;
+    }
+
+    /**
+     * Same as {@link #init(int, long, StorageType)}, additionally setting what is dropped
+     * once the request or the event queue is full. A null policy keeps the current one.
+     * Requests are ranked by their type for {@link EvictionPolicy.Strategy#DROP_LOWEST_PRIORITY}.
+     */
+    static void init(final int evenQueueSize, final long timeDelay, final StorageType storageType,
+                     final EvictionPolicy requestPolicy, final EvictionPolicy eventPolicy){
+        init(evenQueueSize, timeDelay, storageType);
+        if (requestPolicy != null) {
+            Logging.requestEvictionPolicy = requestPolicy.rankedBy(EvictionPolicy.REQUEST_PRIORITY);
+        }
+        if (eventPolicy != null) {
+            Logging.eventEvictionPolicy = eventPolicy;
+        }
+    }
+
+    static StorageType getStorageType(){
+        return storageType;
+    }
+
+    static EvictionPolicy getRequestEvictionPolicy(){
+        return requestEvictionPolicy;
+    }
+
+    static EvictionPolicy getEventEvictionPolicy(){
+        return eventEvictionPolicy;
+    }
+
+    @Override
+    public long droppedRequests() {
+        return connectionQueue_.getLoggingStore() == null ? 0 : connectionQueue_.getLoggingStore().droppedRequests();
+    }
+
+    @Override
+    public long droppedEvents() {
+        return connectionQueue_.getLoggingStore() == null ? 0 : connectionQueue_.getLoggingStore().droppedEvents();
     }
 
     @Override
@@ -6,7 +6,8 @@ import android.app.UiModeManager;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.res.Configuration;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -17,13 +18,7 @@ import android.widget.RatingBar;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URLConnection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -432,18 +427,7 @@ class LoggingStarRating {
                 deviceIsPhone = false;
             }
 
-            ConnectionProcessor cp = connectionQueue_.createConnectionProcessor();
-            URLConnection urlConnection;
-            try {
-                urlConnection = cp.urlConnectionForServerRequest("app_key=" + connectionQueue_.getAppKey() + "&widget_id=" + widgetId, "/o/feedback/widget?");
-            } catch (IOException e) {
-                if (Logging.sharedInstance().isLoggingEnabled()) {
-                    Log.e(Logging.TAG, "IOException while checking for rating widget availability :[" + e.toString() + "]");
-                }
-
-                if(devCallback != null){ devCallback.callback("Encountered problem while checking for rating widget availability"); }
-                return;
-            }
+            final Transport.Call widgetCall = new Transport.Call("/o/feedback/widget?", "app_key=" + connectionQueue_.getAppKey() + "&widget_id=" + widgetId);
 
             final String ratingWidgetUrl = connectionQueue_.getServerURL() + "/feedback?widget_id=" + widgetId + "&device_id=" + connectionQueue_.getDeviceId().getId() + "&app_key=" + connectionQueue_.getAppKey();
 
@@ -451,7 +435,7 @@ class LoggingStarRating {
                 Log.d(Logging.TAG, "rating widget url :[" + ratingWidgetUrl + "]");
             }
 
-            (new ImmediateRequestMaker()).execute(urlConnection, false, new InternalFeedbackRatingCallback() {
+            ImmediateRequestMaker.start(connectionQueue_.getTransport(), widgetCall, false, new InternalFeedbackRatingCallback() {
                 @Override
                 public void callback(JSONObject checkResponse) {
                     if(checkResponse == null){
@@ -521,106 +505,66 @@ class LoggingStarRating {
     }
 
     /**
-     * Ascync task for making immediate server requests
+     * Makes immediate server requests on the network lane of the {@link SdkScheduler}, the
+     * callback is called on the main thread
      */
-    protected static class ImmediateRequestMaker extends AsyncTask<Object, Void, JSONObject> {
-        InternalFeedbackRatingCallback callback;
+    protected static class ImmediateRequestMaker implements Runnable {
+        static final long DELAY_AFTER_DEVICE_ID_CHANGE_MS = 10500;
+
+        private final Transport transport_;
+        private final Transport.Call call_;
+        private final InternalFeedbackRatingCallback callback_;
+
+        ImmediateRequestMaker(final Transport transport, final Transport.Call call, final InternalFeedbackRatingCallback callback) {
+            transport_ = transport;
+            call_ = call;
+            callback_ = callback;
+        }
 
         /**
-         * params fields:
-         * 0 - urlConnection
-         * 1 - requestShouldBeDelayed
-         * 2 - callback         *
+         * Makes the request, if it should be delayed only after {@link #DELAY_AFTER_DEVICE_ID_CHANGE_MS}.
          */
-        protected JSONObject doInBackground(Object... params) {
+        static void start(final Transport transport, final Transport.Call call, final boolean requestShouldBeDelayed, final InternalFeedbackRatingCallback callback) {
+            final ImmediateRequestMaker requestMaker = new ImmediateRequestMaker(transport, call, callback);
+            if (!requestShouldBeDelayed) {
+                SdkScheduler.shared().execute(SdkScheduler.Lane.NETWORK, requestMaker);
+                return;
+            }
+            //used in cases after something has to be done after a device id change
             if (Logging.sharedInstance().isLoggingEnabled()) {
-                Log.v(Logging.TAG, "Starting ImmediateRequestMaker request");
+                Log.v(Logging.TAG, "ImmediateRequestMaker request should be delayed, starting it in 10.5 seconds");
             }
-            callback = (InternalFeedbackRatingCallback)params[2];
-            boolean requestShouldBeDelayed = (boolean)params[1];
-
-            HttpURLConnection connection = null;
-            BufferedReader reader = null;
-            boolean wasSuccess = true;
-
-            try {
-                if(requestShouldBeDelayed){
-                    //used in cases after something has to be done after a device id change
-                    if (Logging.sharedInstance().isLoggingEnabled()) {
-                        Log.v(Logging.TAG, "ImmediateRequestMaker request should be delayed, waiting for 10.5 seconds");
-                    }
-
-                    try {
-                        Thread.sleep(10500);
-                    } catch (InterruptedException e) {
-                        if (Logging.sharedInstance().isLoggingEnabled()) {
-                            Log.w(Logging.TAG, "While waiting for 10 seconds in ImmediateRequestMaker, sleep was interrupted");
-                        }
-                    }
-                }
-
-                connection = (HttpURLConnection)params[0];
-                connection.connect();
-
-                InputStream stream;
-
-                try{
-                    //assume there will be no error
-                    stream = connection.getInputStream();
-                } catch (Exception ex){
-                    //in case of exception, assume there was a error in the request
-                    //and change streams
-                    stream = connection.getErrorStream();
-                    wasSuccess = false;
-                }
+            SdkScheduler.shared().schedule(SdkScheduler.Lane.NETWORK, requestMaker, DELAY_AFTER_DEVICE_ID_CHANGE_MS);
+        }
 
-                reader = new BufferedReader(new InputStreamReader(stream));
+        @Override
+        public void run() {
+            final JSONObject result = request();
+            if (callback_ != null) {
+                new Handler(Looper.getMainLooper()).post(() -> callback_.callback(result));
+            }
+        }
 
-                StringBuilder buffer = new StringBuilder();
-                String line = "";
+        private JSONObject request() {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.v(Logging.TAG, "Starting ImmediateRequestMaker request");
+            }
 
-                while ((line = reader.readLine()) != null) {
-                    buffer.append(line).append("\n");
+            try {
+                final Transport.Response response = transport_.send(call_);
+                if (response.code < 400) {
+                    return new JSONObject(response.bodyString());
                 }
-
-                if(wasSuccess) {
-                    return new JSONObject(buffer.toString());
-                } else {
-                    if (Logging.sharedInstance().isLoggingEnabled()) {
-                        Log.e(Logging.TAG, "Encountered problem while making a immediate server request, :[" + buffer.toString() + "]");
-                    }
-                    return null;
+                if (Logging.sharedInstance().isLoggingEnabled()) {
+                    Log.e(Logging.TAG, "Encountered problem while making a immediate server request, :[" + response.bodyString() + "]");
                 }
-            } catch (MalformedURLException e) {
-                e.printStackTrace();
             } catch (IOException e) {
                 e.printStackTrace();
             } catch (JSONException e) {
                 e.printStackTrace();
-            } finally {
-                if (connection != null) {
-                    connection.disconnect();
-                }
-                try {
-                    if (reader != null) {
-                        reader.close();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
             }
             return null;
         }
-
-        @Override
-        protected void onPostExecute(JSONObject result) {
-            super.onPostExecute(result);
-            //Log.d(TAG, "Post exec: [" + result + "]");
-
-            if(callback != null){
-                callback.callback(result);
-            }
-        }
     }
 
     //https://stackoverflow.com/a/40310535
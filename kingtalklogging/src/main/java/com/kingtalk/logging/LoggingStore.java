@@ -23,20 +23,27 @@ package com.kingtalk.logging;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * This class provides a persistence layer for the local event &amp; connection queues.
  *
+ * The data itself is kept by a {@link StorageBackend}, selected with {@link Logging#init(int, long, StorageType)}.
+ * A single backend is shared by all LoggingStore instances of the process.
+ *
  * The "read" methods in this class are not synchronized, because the underlying data store
  * provides thread-safe reads.  The "write" methods in this class are synchronized, because
  * 1) they often read a list of items, modify the list, and then commit it back to the underlying
@@ -48,73 +55,363 @@ import java.util.Map;
  *       of this bug in dexmaker: https://code.google.com/p/dexmaker/issues/detail?id=34
  */
 class LoggingStore {
-    private static final String PREFERENCES = "LOGGING_STORE";
-    private static final String PREFERENCES_GCM = "ly.count.android.api.messaging";
-    private static final String DELIMITER = ":::";
-    private static final String CONNECTIONS_PREFERENCE = "CONNECTIONS";
-    private static final String EVENTS_PREFERENCE = "EVENTS";
-    private static final String LOCATION_CITY_PREFERENCE = "LOCATION_CITY";
-    private static final String LOCATION_COUNTRY_CODE_PREFERENCE = "LOCATION_COUNTRY_CODE";
-    private static final String LOCATION_IP_ADDRESS_PREFERENCE = "LOCATION_IP_ADDRESS";
-    private static final String LOCATION_PREFERENCE = "LOCATION";
-    private static final String LOCATION_DISABLED_PREFERENCE = "LOCATION_DISABLED";
-    private static final String STAR_RATING_PREFERENCE = "STAR_RATING";
+    static final String LOCATION_CITY_PREFERENCE = "LOCATION_CITY";
+    static final String LOCATION_COUNTRY_CODE_PREFERENCE = "LOCATION_COUNTRY_CODE";
+    static final String LOCATION_IP_ADDRESS_PREFERENCE = "LOCATION_IP_ADDRESS";
+    static final String LOCATION_PREFERENCE = "LOCATION";
+    static final String LOCATION_DISABLED_PREFERENCE = "LOCATION_DISABLED";
+    static final String STAR_RATING_PREFERENCE = "STAR_RATING";
     private static final String CACHED_ADVERTISING_ID = "ADVERTISING_ID";
     private static final String REMOTE_CONFIG_VALUES = "REMOTE_CONFIG";
-    private static final int MAX_EVENTS = 100;
-    private static final int MAX_REQUESTS = 1000;
+    private static final String REQUEST_GENERATION_PREFERENCE = "REQUEST_GENERATION";
+    private static final String REQUEST_PARAMS_PREFERENCE = "REQUEST_PARAMS_";
+    private static final String DROPPED_REQUESTS_PREFERENCE = "DROPPED_REQUESTS";
+    private static final String DROPPED_EVENTS_PREFERENCE = "DROPPED_EVENTS";
+
+    /**
+     * How many of the oldest requests are looked at to find one a lane can send
+     */
+    static final int LANE_WINDOW = 100;
+    /**
+     * Failed attempts after which a request is moved to the dead letters
+     */
+    static final int DEAD_LETTER_ATTEMPTS = 5;
+    private static final int DEAD_LETTER_MAX_RECORDS = 100;
+
+    private static final String CONSENT_GCM_PREFERENCES = PreferencesStorageBackend.CONSENT_GCM_PREFERENCES;
+
+    private static StorageBackend sharedBackend_;
 
-    private final SharedPreferences preferences_;
-    private final SharedPreferences preferencesGCM_;
+    private final StorageBackend backend_;
+    private final StorageBackend.RecordQueue requests_;
+    private final StorageBackend.RecordQueue events_;
+    private final StorageBackend.RecordQueue deadLetters_;
+    private final EvictionPolicy requestPolicy_;
+    private final EvictionPolicy eventPolicy_;
+    private final EvictionPolicy deadLetterPolicy_ = new EvictionPolicy(EvictionPolicy.Strategy.DROP_OLDEST, DEAD_LETTER_MAX_RECORDS);
 
-    private static final String CONSENT_GCM_PREFERENCES = "com.kingtalk.logging.messaging.consent.gcm";
+    // failed attempts of stored requests by sequence ID, only kept while the process lives
+    private final Map<Long, Integer> requestFailures_ = new HashMap<>();
+    // times before which stored requests must not be sent by sequence ID, see delayConnection()
+    private final Map<Long, Long> requestNotBefore_ = new HashMap<>();
+    // the request this store added last while it is still queued, the next one may be merged into it
+    private Request lastConnection_;
+
+    // common request parameters by generation, see CommonRequestParams
+    private final Map<Long, String> requestParams_ = new HashMap<>();
+
+    // parsed copy of the event queue, so that counting and draining events does not read it back
+    private final List<Event> eventCache_ = new ArrayList<>();
+    private int eventCacheRecords_;
+    private long eventCacheLastSeq_;
+    private boolean eventCacheValid_;
 
     /**
-     * Constructs a LoggingStore object.
+     * Constructs a LoggingStore object on top of the process wide storage backend.
      * @param context used to retrieve storage meta data, must not be null.
      * @throws IllegalArgumentException if context is null
      */
     LoggingStore(final Context context) {
+        this(sharedBackend(context));
+    }
+
+    /**
+     * Constructs a LoggingStore object on top of the given backend.
+     * @param backend storage backend to use, must not be null.
+     * @throws IllegalArgumentException if backend is null
+     */
+    LoggingStore(final StorageBackend backend) {
+        this(backend, Logging.getRequestEvictionPolicy(), Logging.getEventEvictionPolicy());
+    }
+
+    /**
+     * Constructs a LoggingStore object on top of the given backend with its own eviction policies.
+     * @param backend storage backend to use, must not be null.
+     * @throws IllegalArgumentException if backend is null
+     */
+    LoggingStore(final StorageBackend backend, final EvictionPolicy requestPolicy, final EvictionPolicy eventPolicy) {
+        if (backend == null) {
+            throw new IllegalArgumentException("must provide valid storage backend");
+        }
+        backend_ = backend;
+        requests_ = openQueue(StorageBackend.QUEUE_CONNECTIONS);
+        events_ = openQueue(StorageBackend.QUEUE_EVENTS);
+        deadLetters_ = openQueue(StorageBackend.QUEUE_DEAD_LETTERS);
+        requestPolicy_ = requestPolicy;
+        eventPolicy_ = eventPolicy;
+    }
+
+    private static synchronized StorageBackend sharedBackend(final Context context) {
         if (context == null) {
             throw new IllegalArgumentException("must provide valid context");
         }
-        preferences_ = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
-        preferencesGCM_ = context.getSharedPreferences(PREFERENCES_GCM, Context.MODE_PRIVATE);
+        if (sharedBackend_ == null) {
+            final StorageType type = Logging.getStorageType();
+            sharedBackend_ = createBackend(context, type);
+            if (type == StorageType.FILE || type == StorageType.SQLITE) {
+                BackendMigrator.moveFromPreferences(context, sharedBackend_);
+            }
+            migrateLegacyQueues(context, sharedBackend_);
+        }
+        return sharedBackend_;
+    }
+
+    /**
+     * Starts moving the queues an older SDK version left in the preferences into the backend.
+     */
+    private static void migrateLegacyQueues(final Context context, final StorageBackend backend) {
+        final SharedPreferences legacy = context.getSharedPreferences(PreferencesStorageBackend.PREFERENCES, Context.MODE_PRIVATE);
+        if (!LegacyQueueMigrator.isNeeded(legacy)) {
+            return;
+        }
+        try {
+            new LegacyQueueMigrator(legacy, backend.queue(StorageBackend.QUEUE_CONNECTIONS), backend.queue(StorageBackend.QUEUE_EVENTS)).start();
+        } catch (IOException e) {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.w(Logging.TAG, "Could not open the queues to migrate into", e);
+            }
+        }
+    }
+
+    /**
+     * Creates a backend of the requested type, falling back to a heap-only one
+     * if its files cannot be opened. Persistent backends get a write-back cache
+     * in front, see {@link #flush()}.
+     */
+    private static StorageBackend createBackend(final Context context, final StorageType type) {
+        switch (type) {
+            case MEMORY:
+                return new MemoryStorageBackend();
+            case FILE:
+                try {
+                    return new WriteBackStorageBackend(new FileStorageBackend(new java.io.File(context.getFilesDir(), "LoggingStore")));
+                } catch (IOException e) {
+                    if (Logging.sharedInstance().isLoggingEnabled()) {
+                        Log.e(Logging.TAG, "Could not open the file storage backend, keeping data in memory", e);
+                    }
+                    return new MemoryStorageBackend();
+                }
+            case SQLITE:
+                return new WriteBackStorageBackend(new SQLiteStorageBackend(context.getApplicationContext()));
+            case PREFERENCES:
+            default:
+                return new WriteBackStorageBackend(new PreferencesStorageBackend(context));
+        }
+    }
+
+    /**
+     * Opens a backend queue.
+     * @return the queue, or null if it could not be opened
+     */
+    private StorageBackend.RecordQueue openQueue(final String name) {
+        try {
+            return backend_.queue(name);
+        } catch (IOException e) {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.e(Logging.TAG, "Could not open the [" + name + "] queue", e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns an array of the current stored connections in wire format without device ID,
+     * from oldest to newest.
+     */
+    synchronized String[] connections() {
+        if (requests_ == null) {
+            return new String[0];
+        }
+        try {
+            final List<String> connections = new ArrayList<>();
+            for (StorageBackend.Record record : requests_.peek(Integer.MAX_VALUE)) {
+                final Request request = readConnection(record);
+                if (request != null) {
+                    connections.add(request.encode(null));
+                }
+            }
+            return connections.toArray(new String[0]);
+        } catch (IOException e) {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.w(Logging.TAG, "Could not read stored connections", e);
+            }
+            return new String[0];
+        }
+    }
+
+    /**
+     * Returns up to max of the oldest stored connections that can be sent, with their sequence
+     * IDs set. Requests of a blocked lane are passed over, so that the other lanes do not wait
+     * for them. Across lanes the order is only kept where the server needs it:
+     * <ul>
+     * <li>events wait for a session begin queued before them</li>
+     * <li>a device ID change waits for every request queued before it</li>
+     * <li>a request held back with {@link #delayConnection(long, long)} waits until it is due</li>
+     * </ul>
+     * A request that waits holds up the rest of its lane. The returned requests are in queue
+     * order and can be sent in one bulk request.
+     *
+     * Only the oldest {@link #LANE_WINDOW} requests are looked at. Records that cannot be read are dropped.
+     * @param blockedLanes lanes that must not send now
+     */
+    synchronized List<Request> nextConnections(final Set<Request.Lane> blockedLanes, final int max) {
+        final List<Request> connections = new ArrayList<>();
+        if (requests_ == null) {
+            return connections;
+        }
+        final Set<Request.Lane> held = EnumSet.noneOf(Request.Lane.class);
+        held.addAll(blockedLanes);
+        boolean earlierHeld = false;
+        boolean sessionBeginHeld = false;
+        final long now = System.currentTimeMillis();
+        try {
+            for (StorageBackend.Record record : requests_.peek(LANE_WINDOW)) {
+                final Request request = readConnection(record);
+                if (request == null) {
+                    if (Logging.sharedInstance().isLoggingEnabled()) {
+                        Log.w(Logging.TAG, "Dropping unreadable stored connection [" + record.seq + "]");
+                    }
+                    requests_.remove(record.seq);
+                    continue;
+                }
+                if (held.contains(request.type.lane)
+                        || (request.type == Request.Type.EVENTS && sessionBeginHeld)
+                        || (request.type == Request.Type.CHANGE_DEVICE_ID && earlierHeld)
+                        || isDelayed(request.seq, now)) {
+                    held.add(request.type.lane);
+                    earlierHeld = true;
+                    sessionBeginHeld |= request.type == Request.Type.BEGIN_SESSION;
+                    continue;
+                }
+                connections.add(request);
+                if (connections.size() >= max) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.w(Logging.TAG, "Could not read stored connections", e);
+            }
+        }
+        return connections;
     }
 
     /**
-     * Returns an unsorted array of the current stored connections.
+     * Returns the number of stored connections.
      */
-    String[] connections() {
-        final String joinedConnStr = preferences_.getString(CONNECTIONS_PREFERENCE, "");
-        return joinedConnStr.length() == 0 ? new String[0] : joinedConnStr.split(DELIMITER);
+    int connectionsCount() {
+        return requests_ == null ? 0 : requests_.size();
     }
 
     /**
-     * Returns an unsorted array of the current stored event JSON strings.
+     * Returns an array of the current stored event JSON strings, from oldest to newest.
      */
-    String[] events() {
-        final String joinedEventsStr = preferences_.getString(EVENTS_PREFERENCE, "");
-        return joinedEventsStr.length() == 0 ? new String[0] : joinedEventsStr.split(DELIMITER);
+    synchronized String[] events() {
+        final List<Event> events = parseEvents(readEvents());
+        final String[] strings = new String[events.size()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = events.get(i).toJSON().toString();
+        }
+        return strings;
+    }
+
+    /**
+     * Returns the number of current stored events without reading them.
+     */
+    int eventsCount() {
+        return events_ == null ? 0 : events_.size();
+    }
+
+    /**
+     * Returns the total size of the current stored events without reading them.
+     */
+    long eventsBytes() {
+        return events_ == null ? 0 : events_.bytes();
     }
 
     /**
      * Returns a list of the current stored events, sorted by timestamp from oldest to newest.
      */
-    List<Event> eventsList() {
-        final String[] array = events();
-        final List<Event> events = new ArrayList<>(array.length);
-        for (String s : array) {
+    synchronized List<Event> eventsList() {
+        return sortEvents(new ArrayList<>(cachedEvents()));
+    }
+
+    /**
+     * Removes all current stored events and returns them, sorted by timestamp from oldest to newest.
+     * The events come from the in-memory cache, the event queue is only told up to which record to release.
+     */
+    synchronized List<Event> takeEvents() {
+        final List<Event> events = new ArrayList<>(cachedEvents());
+        if (eventCacheRecords_ > 0) {
             try {
-                final Event event = Event.fromJSON(new JSONObject(s));
-                if (event != null) {
-                    events.add(event);
+                events_.commit(eventCacheLastSeq_);
+                eventCache_.clear();
+                eventCacheRecords_ = 0;
+            } catch (IOException e) {
+                eventCacheValid_ = false;
+                if (Logging.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Logging.TAG, "Could not remove stored events", e);
                 }
-            } catch (JSONException ignored) {
-                // should not happen since JSONObject is being constructed from previously stringified JSONObject
-                // events -> json objects -> json strings -> storage -> json strings -> here
             }
         }
+        return sortEvents(events);
+    }
+
+    /**
+     * Returns the parsed events in queue order. The cache is only rebuilt from the queue the first
+     * time, or when the queue was changed behind it (an eviction or another store instance).
+     */
+    private List<Event> cachedEvents() {
+        if (!eventCacheValid_ || eventCacheRecords_ != eventsCount()) {
+            final List<StorageBackend.Record> records = readEvents();
+            eventCache_.clear();
+            eventCache_.addAll(parseEvents(records));
+            eventCacheRecords_ = records.size();
+            eventCacheLastSeq_ = records.isEmpty() ? -1 : records.get(records.size() - 1).seq;
+            eventCacheValid_ = true;
+        }
+        return eventCache_;
+    }
+
+    private List<StorageBackend.Record> readEvents() {
+        if (events_ == null) {
+            return new ArrayList<>();
+        }
+        try {
+            return events_.peek(Integer.MAX_VALUE);
+        } catch (IOException e) {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.w(Logging.TAG, "Could not read stored events", e);
+            }
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Decodes stored event records, which are binary or, if written by an older version, JSON.
+     */
+    private static List<Event> parseEvents(final List<StorageBackend.Record> records) {
+        final List<Event> events = new ArrayList<>(records.size());
+        for (StorageBackend.Record record : records) {
+            Event event = null;
+            if (EventCodec.isBinary(record.data)) {
+                event = EventCodec.decode(record.data);
+            } else {
+                try {
+                    event = Event.fromJSON(new JSONObject(new String(record.data, StandardCharsets.UTF_8)));
+                } catch (JSONException ignored) {
+                    // should not happen since JSONObject is being constructed from previously stringified JSONObject
+                    // events -> json objects -> json strings -> storage -> json strings -> here
+                }
+            }
+            if (event != null) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    private static List<Event> sortEvents(final List<Event> events) {
         // order the events from least to most recent
         Collections.sort(events, (e1, e2) -> (int)(e1.timestamp - e2.timestamp));
         return events;
@@ -124,132 +421,425 @@ class LoggingStore {
      * Returns true if no connections are current stored, false otherwise.
      */
     boolean isEmptyConnections() {
-        return preferences_.getString(CONNECTIONS_PREFERENCE, "").length() == 0;
+        return requests_ == null || requests_.size() == 0;
+    }
+
+    /**
+     * Adds a connection to the local store. If the store is full, the request eviction policy
+     * decides whether an older connection or this one is dropped.
+     * @param request the connection to be added, ignored if null
+     */
+    synchronized void addConnection(final Request request) {
+        addConnection(request, false);
     }
 
     /**
-     * Adds a connection to the local store.
-     * @param str the connection to be added, ignored if null or empty
+     * Adds a connection to the local store, merged into the one this store added right before
+     * it if that is still queued and the two can be sent as one, see {@link Request#mergedWith(Request)}.
+     * The merged connection replaces the earlier one at the end of the queue. The earlier one is
+     * removed first, so a full queue does not make room for the merged one, which needs none;
+     * should the merged one still not fit, the earlier one is put back and the new one dropped.
+     * @param request the connection to be added, ignored if null
+     * @param mayMerge false while the connection added before may be being sent
      */
-    synchronized void addConnection(final String str) {
-        if (str != null && str.length() > 0) {
-            final List<String> connections = new ArrayList<>(Arrays.asList(connections()));
-            if (connections.size() < MAX_REQUESTS) {
-                connections.add(str);
-                preferences_.edit().putString(CONNECTIONS_PREFERENCE, join(connections, DELIMITER)).apply();
+    synchronized void addConnection(final Request request, final boolean mayMerge) {
+        if (request != null && requests_ != null) {
+            try {
+                final Request last = lastConnection_;
+                final Request merged = mayMerge && last != null ? last.mergedWith(request) : null;
+                if (merged == null) {
+                    storeConnection(request, null);
+                    return;
+                }
+                // the merged connection counts the failures of the one it replaces
+                final Integer failures = requestFailures_.get(last.seq);
+                removeConnection(last.seq);
+                if (!storeConnection(merged, failures)) {
+                    storeConnection(last, failures);
+                }
+            } catch (IOException e) {
+                if (Logging.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Logging.TAG, "Could not store connection", e);
+                }
             }
         }
     }
 
     /**
-     * Removes a connection from the local store.
-     * @param str the connection to be removed, ignored if null or empty,
-     *            or if a matching connection cannot be found
+     * Offers a connection to the request queue and makes it the one later ones may be merged into.
+     * @param failures failed attempts to send it so far, null for none
+     * @return false if the eviction policy dropped it
      */
-    synchronized void removeConnection(final String str) {
-        if (str != null && str.length() > 0) {
-            final List<String> connections = new ArrayList<>(Arrays.asList(connections()));
-            if (connections.remove(str)) {
-                preferences_.edit().putString(CONNECTIONS_PREFERENCE, join(connections, DELIMITER)).apply();
+    private boolean storeConnection(final Request request, final Integer failures) throws IOException {
+        final long seq = offer(requestPolicy_, requests_, compactConnection(request), DROPPED_REQUESTS_PREFERENCE);
+        if (seq < 0) {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.w(Logging.TAG, "Request queue is full, dropped a request [" + requestPolicy_.droppedRecords() + " so far]");
             }
+            return false;
         }
+        request.seq = seq;
+        if (failures != null) {
+            requestFailures_.put(seq, failures);
+        }
+        lastConnection_ = request;
+        return true;
     }
 
     /**
-     * Adds a custom event to the local store.
+     * Removes a connection from the local store once it is sent or the server refused it.
+     * @param seq sequence ID of the connection
+     */
+    synchronized void removeConnection(final long seq) {
+        if (requests_ == null) {
+            return;
+        }
+        requestFailures_.remove(seq);
+        requestNotBefore_.remove(seq);
+        if (lastConnection_ != null && lastConnection_.seq == seq) {
+            lastConnection_ = null;
+        }
+        try {
+            requests_.remove(seq);
+            if (requests_.size() == 0) {
+                removeOldRequestParams();
+            }
+        } catch (IOException e) {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.w(Logging.TAG, "Could not remove stored connection", e);
+            }
+        }
+    }
+
+    /**
+     * Holds back a stored connection, and the rest of its lane with it, until the given time.
+     * Only kept while the process lives.
+     * @return true if it is held back now, false if it was before, which means it is due
+     */
+    synchronized boolean delayConnection(final long seq, final long notBefore) {
+        if (requestNotBefore_.containsKey(seq)) {
+            return false;
+        }
+        requestNotBefore_.put(seq, notBefore);
+        return true;
+    }
+
+    /**
+     * Returns when the next connection held back with {@link #delayConnection(long, long)} is
+     * due, or 0 if none is held back.
+     */
+    synchronized long nextDelayedConnection() {
+        final long now = System.currentTimeMillis();
+        long next = 0;
+        for (long notBefore : requestNotBefore_.values()) {
+            if (notBefore > now && (next == 0 || notBefore < next)) {
+                next = notBefore;
+            }
+        }
+        return next;
+    }
+
+    private boolean isDelayed(final long seq, final long now) {
+        final Long notBefore = requestNotBefore_.get(seq);
+        return notBefore != null && notBefore > now;
+    }
+
+    /**
+     * Counts a failed attempt to send a stored connection. After {@link #DEAD_LETTER_ATTEMPTS}
+     * failures it is moved out of the request queue into the dead letters, with all of its
+     * parameters, so that it no longer holds up its lane.
+     * @return true if the connection was moved to the dead letters
+     */
+    synchronized boolean connectionFailed(final Request request) {
+        final Integer before = requestFailures_.get(request.seq);
+        final int failures = before == null ? 1 : before + 1;
+        if (failures < DEAD_LETTER_ATTEMPTS || deadLetters_ == null) {
+            requestFailures_.put(request.seq, failures);
+            return false;
+        }
+        try {
+            deadLetterPolicy_.offer(deadLetters_, request.toRecord(0));
+        } catch (IOException e) {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.w(Logging.TAG, "Could not store dead letter", e);
+            }
+        }
+        if (Logging.sharedInstance().isLoggingEnabled()) {
+            Log.w(Logging.TAG, "Request failed " + failures + " times, moved it to the dead letters: " + request);
+        }
+        removeConnection(request.seq);
+        return true;
+    }
+
+    /**
+     * Returns the requests that were given up on in wire format without device ID, from oldest to newest.
+     */
+    synchronized String[] deadLetters() {
+        if (deadLetters_ == null) {
+            return new String[0];
+        }
+        try {
+            final List<String> deadLetters = new ArrayList<>();
+            for (StorageBackend.Record record : deadLetters_.peek(Integer.MAX_VALUE)) {
+                final Request request = Request.fromRecord(record.data, null);
+                if (request != null) {
+                    deadLetters.add(request.encode(null));
+                }
+            }
+            return deadLetters.toArray(new String[0]);
+        } catch (IOException e) {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.w(Logging.TAG, "Could not read dead letters", e);
+            }
+            return new String[0];
+        }
+    }
+
+    /**
+     * Turns a request into the record to store. Requests that carry all common parameters are
+     * stored without them, a new generation of common parameters is started when they changed.
+     */
+    private byte[] compactConnection(final Request request) {
+        // compared in place, a String is only made when a new generation starts
+        final StringBuilder current = RequestWriter.buffer();
+        if (!CommonRequestParams.write(request, current)) {
+            return request.toRecord(0);
+        }
+        long generation = currentRequestGeneration();
+        final String stored = requestParams(generation);
+        if (stored == null || !stored.contentEquals(current)) {
+            final String params = current.toString();
+            generation++;
+            final Map<String, Object> changes = new HashMap<>();
+            changes.put(REQUEST_GENERATION_PREFERENCE, String.valueOf(generation));
+            changes.put(REQUEST_PARAMS_PREFERENCE + generation, params);
+            // written through, a record must never refer to parameters that are not persisted
+            backend_.commit(changes);
+            requestParams_.put(generation, params);
+        }
+        return request.toRecord(generation);
+    }
+
+    /**
+     * Reads a stored request, putting its common parameters back.
+     * @return the request with its sequence ID set, or null if the record cannot be read
+     */
+    private Request readConnection(final StorageBackend.Record record) {
+        final Request request;
+        if (Request.isRecord(record.data)) {
+            request = Request.fromRecord(record.data, storedRequestParams(Request.generation(record.data)));
+        } else {
+            // queued as text by an older version
+            request = Request.parse(new String(record.data, StandardCharsets.UTF_8));
+        }
+        if (request != null) {
+            request.seq = record.seq;
+        }
+        return request;
+    }
+
+    /**
+     * Returns the common parameters a stored record refers to, or null if it does not refer to any.
+     */
+    private String storedRequestParams(final long generation) {
+        if (generation == 0) {
+            return null;
+        }
+        final String params = requestParams(generation);
+        if (params == null && Logging.sharedInstance().isLoggingEnabled()) {
+            Log.w(Logging.TAG, "Common parameters of stored request generation [" + generation + "] are missing");
+        }
+        return params;
+    }
+
+    private long currentRequestGeneration() {
+        try {
+            return Long.parseLong(backend_.getString(REQUEST_GENERATION_PREFERENCE, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private String requestParams(final long generation) {
+        String params = requestParams_.get(generation);
+        if (params == null) {
+            params = backend_.getString(REQUEST_PARAMS_PREFERENCE + generation, null);
+            if (params != null) {
+                requestParams_.put(generation, params);
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Drops the common parameters of earlier generations once no stored request refers to them.
+     */
+    private void removeOldRequestParams() {
+        final Map<String, Object> changes = new HashMap<>();
+        for (long generation = currentRequestGeneration() - 1; generation > 0 && requestParams(generation) != null; generation--) {
+            changes.put(REQUEST_PARAMS_PREFERENCE + generation, null);
+            requestParams_.remove(generation);
+        }
+        if (!changes.isEmpty()) {
+            backend_.apply(changes);
+        }
+    }
+
+    /**
+     * Adds a custom event to the local store. If the store is full, the event eviction policy
+     * decides whether an older event or this one is dropped.
      * @param event event to be added to the local store, must not be null
      */
-    void addEvent(final Event event) {
-        final List<Event> events = eventsList();
-        if (events.size() < MAX_EVENTS) {
-            events.add(event);
-            preferences_.edit().putString(EVENTS_PREFERENCE, joinEvents(events, DELIMITER)).apply();
+    synchronized void addEvent(final Event event) {
+        if (events_ != null) {
+            try {
+                final int countBefore = eventsCount();
+                final long seq = offer(eventPolicy_, events_, EventCodec.encode(event), DROPPED_EVENTS_PREFERENCE);
+                if (seq < 0) {
+                    if (Logging.sharedInstance().isLoggingEnabled()) {
+                        Log.w(Logging.TAG, "Event queue is full, dropped an event [" + eventPolicy_.droppedRecords() + " so far]");
+                    }
+                } else if (eventCacheValid_ && eventCacheRecords_ == countBefore && eventsCount() == countBefore + 1) {
+                    eventCache_.add(event);
+                    eventCacheRecords_++;
+                    eventCacheLastSeq_ = seq;
+                }
+            } catch (IOException e) {
+                if (Logging.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Logging.TAG, "Could not store event", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a record to a queue through its eviction policy and adds the records the policy
+     * dropped to the stored total under droppedKey.
+     * @return the sequence ID of the stored record, or -1 if the record itself was dropped
+     */
+    private long offer(final EvictionPolicy policy, final StorageBackend.RecordQueue queue, final byte[] record,
+                       final String droppedKey) throws IOException {
+        // the policy is shared by every store, holding it keeps the count of this offer apart
+        synchronized (policy) {
+            final long before = policy.droppedRecords();
+            final long seq = policy.offer(queue, record);
+            final long dropped = policy.droppedRecords() - before;
+            if (dropped > 0) {
+                put(droppedKey, Long.toString(droppedCount(droppedKey) + dropped));
+            }
+            return seq;
         }
     }
 
+    private long droppedCount(final String key) {
+        try {
+            return Long.parseLong(backend_.getString(key, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns how many requests were dropped or evicted because the request queue was full, since the app was installed.
+     */
+    long droppedRequests() {
+        return droppedCount(DROPPED_REQUESTS_PREFERENCE);
+    }
+
+    /**
+     * Returns how many events were dropped or evicted because the event queue was full, since the app was installed.
+     */
+    long droppedEvents() {
+        return droppedCount(DROPPED_EVENTS_PREFERENCE);
+    }
+
+    private void put(final String key, final Object value) {
+        backend_.apply(Collections.singletonMap(key, value));
+    }
+
     /**
      * Sets location of user and sends it with next request
      */
     void setLocation(final String latLonCoordinates) {
-        preferences_.edit().putString(LOCATION_PREFERENCE, latLonCoordinates).apply();
+        put(LOCATION_PREFERENCE, latLonCoordinates);
     }
 
     void setLocationCity(final String city) {
-        preferences_.edit().putString(LOCATION_CITY_PREFERENCE, city).apply();
+        put(LOCATION_CITY_PREFERENCE, city);
     }
 
     void setLocationCountryCode(final String countryCode) {
-        preferences_.edit().putString(LOCATION_COUNTRY_CODE_PREFERENCE, countryCode).apply();
+        put(LOCATION_COUNTRY_CODE_PREFERENCE, countryCode);
     }
 
     void setLocationIpAddress(final String ipAddress) {
-        preferences_.edit().putString(LOCATION_IP_ADDRESS_PREFERENCE, ipAddress).apply();
+        put(LOCATION_IP_ADDRESS_PREFERENCE, ipAddress);
     }
 
     void setLocationDisabled(final boolean locationDisabled) {
-        preferences_.edit().putBoolean(LOCATION_DISABLED_PREFERENCE, locationDisabled).apply();
+        put(LOCATION_DISABLED_PREFERENCE, locationDisabled);
     }
 
     /**
      * Get location or empty string in case if no location is specified
      */
     String getLocation() {
-        return preferences_.getString(LOCATION_PREFERENCE, "");
+        return backend_.getString(LOCATION_PREFERENCE, "");
     }
 
     String getLocationCity() {
-        return preferences_.getString(LOCATION_CITY_PREFERENCE, "");
+        return backend_.getString(LOCATION_CITY_PREFERENCE, "");
     }
 
     String getLocationCountryCode() {
-        return preferences_.getString(LOCATION_COUNTRY_CODE_PREFERENCE, "");
+        return backend_.getString(LOCATION_COUNTRY_CODE_PREFERENCE, "");
     }
 
     String getLocationIpAddress() {
-        return preferences_.getString(LOCATION_IP_ADDRESS_PREFERENCE, "");
+        return backend_.getString(LOCATION_IP_ADDRESS_PREFERENCE, "");
     }
 
     boolean getLocationDisabled() {
-        return preferences_.getBoolean(LOCATION_DISABLED_PREFERENCE, false);
+        return backend_.getBoolean(LOCATION_DISABLED_PREFERENCE, false);
     }
 
     /**
      * Set the preferences that are used for the star rating
      */
     void setStarRatingPreferences(String prefs) {
-        preferences_.edit().putString(STAR_RATING_PREFERENCE, prefs).apply();
+        put(STAR_RATING_PREFERENCE, prefs);
     }
 
     /**
      * Get the preferences that are used for the star rating
      */
     String getStarRatingPreferences() {
-        return preferences_.getString(STAR_RATING_PREFERENCE, "");
+        return backend_.getString(STAR_RATING_PREFERENCE, "");
     }
 
     void setRemoteConfigValues(String values){
-        preferences_.edit().putString(REMOTE_CONFIG_VALUES, values).apply();
+        put(REMOTE_CONFIG_VALUES, values);
     }
 
     String getRemoteConfigValues(){
-        return preferences_.getString(REMOTE_CONFIG_VALUES, "");
+        return backend_.getString(REMOTE_CONFIG_VALUES, "");
     }
 
 
     void setCachedAdvertisingId(String advertisingId) {
-        preferences_.edit().putString(CACHED_ADVERTISING_ID, advertisingId).apply();
+        put(CACHED_ADVERTISING_ID, advertisingId);
     }
 
     String getCachedAdvertisingId() {
-        return preferences_.getString(CACHED_ADVERTISING_ID, "");
+        return backend_.getString(CACHED_ADVERTISING_ID, "");
     }
 
     void setConsentPush(boolean consentValue){
-        preferencesGCM_.edit().putBoolean(CONSENT_GCM_PREFERENCES, consentValue).apply();
+        put(CONSENT_GCM_PREFERENCES, consentValue);
     }
 
     Boolean getConsentPush(){
-        return preferencesGCM_.getBoolean(CONSENT_GCM_PREFERENCES, false);
+        return backend_.getBoolean(CONSENT_GCM_PREFERENCES, false);
     }
 
     /**
@@ -279,57 +869,12 @@ class LoggingStore {
         addEvent(event);
     }
 
-    /**
-     * Removes the specified events from the local store. Does nothing if the event collection
-     * is null or empty.
-     * @param eventsToRemove collection containing the events to remove from the local store
-     */
-    synchronized void removeEvents(final Collection<Event> eventsToRemove) {
-        if (eventsToRemove != null && eventsToRemove.size() > 0) {
-            final List<Event> events = eventsList();
-            if (events.removeAll(eventsToRemove)) {
-                preferences_.edit().putString(EVENTS_PREFERENCE, joinEvents(events, DELIMITER)).apply();
-            }
-        }
-    }
-
-    /**
-     * Converts a collection of Event objects to URL-encoded JSON to a string, with each
-     * event JSON string delimited by the specified delimiter.
-     * @param collection events to join into a delimited string
-     * @param delimiter delimiter to use, should not be something that can be found in URL-encoded JSON string
-     */
-    private static String joinEvents(final Collection<Event> collection, final String delimiter) {
-        final List<String> strings = new ArrayList<>();
-        for (Event e : collection) {
-            strings.add(e.toJSON().toString());
-        }
-        return join(strings, delimiter);
-    }
-
-    /**
-     * Joins all the strings in the specified collection into a single string with the specified delimiter.
-     */
-    private static String join(final Collection<String> collection, final String delimiter) {
-        final StringBuilder builder = new StringBuilder();
-
-        int i = 0;
-        for (String s : collection) {
-            builder.append(s);
-            if (++i < collection.size()) {
-                builder.append(delimiter);
-            }
-        }
-
-        return builder.toString();
-    }
-
     /**
      * Retrieves a preference from local store.
      * @param key the preference key
      */
     synchronized String getPreference(final String key) {
-        return preferences_.getString(key, null);
+        return backend_.getString(key, null);
     }
 
     /**
@@ -338,19 +883,32 @@ class LoggingStore {
      * @param value the preference value, supply null value to remove preference
      */
     synchronized void setPreference(final String key, final String value) {
-        if (value == null) {
-            preferences_.edit().remove(key).apply();
-        } else {
-            preferences_.edit().putString(key, value).apply();
-        }
+        put(key, value);
+    }
+
+    /**
+     * Persists all values changed so far. Setters only update the in-memory state and
+     * the changes are written in batches, so this is called when the app stops or crashes.
+     */
+    void flush() {
+        backend_.flush();
     }
 
     // for unit testing
     synchronized void clear() {
-        final SharedPreferences.Editor prefsEditor = preferences_.edit();
-        prefsEditor.remove(EVENTS_PREFERENCE);
-        prefsEditor.remove(CONNECTIONS_PREFERENCE);
-        prefsEditor.clear();
-        prefsEditor.apply();
+        requestParams_.clear();
+        requestFailures_.clear();
+        requestNotBefore_.clear();
+        lastConnection_ = null;
+        eventCache_.clear();
+        eventCacheRecords_ = 0;
+        eventCacheValid_ = false;
+        try {
+            backend_.clear();
+        } catch (IOException e) {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.w(Logging.TAG, "Could not clear the local store", e);
+            }
+        }
     }
 }
@@ -0,0 +1,133 @@
+package com.kingtalk.logging;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage backend that keeps everything on the heap. Nothing survives the process,
+ * so it is meant for tests and for measuring the other backends against.
+ */
+class MemoryStorageBackend implements StorageBackend {
+    private final Map<String, Object> values_ = new HashMap<>();
+    private final Map<String, MemoryQueue> queues_ = new HashMap<>();
+
+    static class MemoryQueue implements RecordQueue {
+        private final ArrayDeque<Record> records_ = new ArrayDeque<>();
+        private long nextSeq_;
+        private long bytes_;
+
+        @Override
+        public synchronized long append(final byte[] record) {
+            records_.add(new Record(nextSeq_, record));
+            bytes_ += record.length;
+            return nextSeq_++;
+        }
+
+        @Override
+        public synchronized List<Record> peek(final int max) {
+            final List<Record> records = new ArrayList<>(Math.min(max, records_.size()));
+            for (Record record : records_) {
+                if (records.size() >= max) {
+                    break;
+                }
+                records.add(record);
+            }
+            return records;
+        }
+
+        @Override
+        public synchronized void commit(final long upToSeq) {
+            while (!records_.isEmpty() && records_.peekFirst().seq <= upToSeq) {
+                bytes_ -= records_.pollFirst().data.length;
+            }
+        }
+
+        @Override
+        public synchronized void remove(final long seq) {
+            for (Iterator<Record> it = records_.iterator(); it.hasNext(); ) {
+                final Record record = it.next();
+                if (record.seq == seq) {
+                    it.remove();
+                    bytes_ -= record.data.length;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public synchronized int size() {
+            return records_.size();
+        }
+
+        @Override
+        public synchronized long bytes() {
+            return bytes_;
+        }
+
+        @Override
+        public synchronized void clear() {
+            records_.clear();
+            bytes_ = 0;
+        }
+    }
+
+    @Override
+    public synchronized String getString(final String key, final String defValue) {
+        final Object value = values_.get(key);
+        return value instanceof String ? (String) value : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(final String key, final boolean defValue) {
+        final Object value = values_.get(key);
+        return value instanceof Boolean ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public synchronized Map<String, Object> getAll() {
+        return new HashMap<>(values_);
+    }
+
+    @Override
+    public synchronized void apply(final Map<String, Object> changes) {
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                values_.remove(change.getKey());
+            } else {
+                values_.put(change.getKey(), change.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void commit(final Map<String, Object> changes) {
+        apply(changes);
+    }
+
+    @Override
+    public void flush() {
+        // nothing is buffered
+    }
+
+    @Override
+    public synchronized RecordQueue queue(final String name) {
+        MemoryQueue queue = queues_.get(name);
+        if (queue == null) {
+            queue = new MemoryQueue();
+            queues_.put(name, queue);
+        }
+        return queue;
+    }
+
+    @Override
+    public synchronized void clear() {
+        values_.clear();
+        for (MemoryQueue queue : queues_.values()) {
+            queue.clear();
+        }
+    }
+}
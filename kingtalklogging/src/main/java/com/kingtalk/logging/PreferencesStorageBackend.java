@@ -0,0 +1,170 @@
+package com.kingtalk.logging;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Default storage backend. Values live in the SharedPreferences files the SDK has always used,
+ * so upgrading keeps the device ID, remote config and the rest of the configuration. Since every
+ * change rewrites a whole preferences file, the {@link StorageBackend#HOT_KEYS} are kept in a
+ * file of their own; they are moved there the first time an older file is opened. The queues
+ * are the same files {@link FileStorageBackend} uses.
+ */
+class PreferencesStorageBackend implements StorageBackend {
+    static final String PREFERENCES = "LOGGING_STORE";
+    private static final String PREFERENCES_HOT = "LOGGING_STORE_HOT";
+    private static final String PREFERENCES_GCM = "ly.count.android.api.messaging";
+    private static final String QUEUE_DIRECTORY = "Logging";
+
+    /**
+     * Values that belong in the messaging preferences file, which the messaging module reads too.
+     */
+    static final String CONSENT_GCM_PREFERENCES = "com.kingtalk.logging.messaging.consent.gcm";
+
+    private final SharedPreferences preferences_;
+    private final SharedPreferences preferencesHot_;
+    private final SharedPreferences preferencesGCM_;
+    private final File queueDir_;
+    private final Map<String, RecordQueue> queues_ = new HashMap<>();
+
+    PreferencesStorageBackend(final Context context) {
+        preferences_ = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        preferencesHot_ = context.getSharedPreferences(PREFERENCES_HOT, Context.MODE_PRIVATE);
+        preferencesGCM_ = context.getSharedPreferences(PREFERENCES_GCM, Context.MODE_PRIVATE);
+        queueDir_ = new File(context.getFilesDir(), QUEUE_DIRECTORY);
+        moveHotKeys();
+    }
+
+    /**
+     * Moves hot values an older version stored in the main preferences file into the hot one.
+     */
+    private void moveHotKeys() {
+        final Map<String, ?> stored = preferences_.getAll();
+        final Map<String, Object> moved = new HashMap<>();
+        for (String key : HOT_KEYS) {
+            if (stored.containsKey(key)) {
+                moved.put(key, stored.get(key));
+            }
+        }
+        if (moved.isEmpty()) {
+            return;
+        }
+        final SharedPreferences.Editor hot = preferencesHot_.edit();
+        final SharedPreferences.Editor cold = preferences_.edit();
+        for (Map.Entry<String, Object> entry : moved.entrySet()) {
+            if (!preferencesHot_.contains(entry.getKey())) {
+                put(hot, entry.getKey(), entry.getValue());
+            }
+            cold.remove(entry.getKey());
+        }
+        // the hot file has to hold the values before they are gone from the main one
+        hot.commit();
+        cold.apply();
+    }
+
+    private SharedPreferences preferencesFor(final String key) {
+        if (CONSENT_GCM_PREFERENCES.equals(key)) {
+            return preferencesGCM_;
+        }
+        return HOT_KEYS.contains(key) ? preferencesHot_ : preferences_;
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        return preferencesFor(key).getString(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        return preferencesFor(key).getBoolean(key, defValue);
+    }
+
+    @Override
+    public Map<String, Object> getAll() {
+        final Map<String, Object> values = new HashMap<>(preferences_.getAll());
+        values.putAll(preferencesHot_.getAll());
+        if (preferencesGCM_.contains(CONSENT_GCM_PREFERENCES)) {
+            values.put(CONSENT_GCM_PREFERENCES, preferencesGCM_.getBoolean(CONSENT_GCM_PREFERENCES, false));
+        }
+        return values;
+    }
+
+    @Override
+    public void apply(final Map<String, Object> changes) {
+        write(changes, false);
+    }
+
+    @Override
+    public void commit(final Map<String, Object> changes) {
+        write(changes, true);
+    }
+
+    @Override
+    public void flush() {
+        // apply() hands changes to the SharedPreferences writer right away
+    }
+
+    /**
+     * Writes the changes with one editor per preferences file, files without a change are not touched.
+     */
+    private void write(final Map<String, Object> changes, final boolean sync) {
+        final Map<SharedPreferences, SharedPreferences.Editor> editors = new HashMap<>();
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            final SharedPreferences preferences = preferencesFor(change.getKey());
+            SharedPreferences.Editor editor = editors.get(preferences);
+            if (editor == null) {
+                editor = preferences.edit();
+                editors.put(preferences, editor);
+            }
+            put(editor, change.getKey(), change.getValue());
+        }
+        for (SharedPreferences.Editor editor : editors.values()) {
+            if (sync) {
+                editor.commit();
+            } else {
+                editor.apply();
+            }
+        }
+    }
+
+    private static void put(final SharedPreferences.Editor editor, final String key, final Object value) {
+        if (value == null) {
+            editor.remove(key);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else {
+            editor.putString(key, value.toString());
+        }
+    }
+
+    /**
+     * Returns the directory holding the queue files, it only exists once a queue was opened.
+     */
+    File queueDirectory() {
+        return queueDir_;
+    }
+
+    @Override
+    public synchronized RecordQueue queue(final String name) throws IOException {
+        RecordQueue queue = queues_.get(name);
+        if (queue == null) {
+            queue = FileStorageBackend.openQueue(queueDir_, name);
+            queues_.put(name, queue);
+        }
+        return queue;
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        preferences_.edit().clear().apply();
+        preferencesHot_.edit().clear().apply();
+        for (RecordQueue queue : queues_.values()) {
+            queue.clear();
+        }
+    }
+}
@@ -7,8 +7,6 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.IOException;
-import java.net.URLConnection;
 import java.util.Iterator;
 
 class RemoteConfig {
@@ -52,28 +50,12 @@ class RemoteConfig {
             keysExclude = excludeArray.toString();
         }
 
-        ConnectionProcessor cp = connectionQueue_.createConnectionProcessor();
-        URLConnection urlConnection;
         String requestData = connectionQueue_.prepareRemoteConfigRequest(keysInclude, keysExclude);
         if (Logging.sharedInstance().isLoggingEnabled()) {
             Log.d(Logging.TAG, "RemoteConfig requestData:[" + requestData + "]");
         }
 
-        try {
-            urlConnection = cp.urlConnectionForServerRequest(requestData, "/o/sdk?");
-        } catch (IOException e) {
-            if (Logging.sharedInstance().isLoggingEnabled()) {
-                Log.e(Logging.TAG, "IOException while preparing remote config update request :[" + e.toString() + "]");
-            }
-
-            if(callback != null){
-                callback.callback("Encountered problem while trying to reach the server");
-            }
-
-            return;
-        }
-
-        (new LoggingStarRating.ImmediateRequestMaker()).execute(urlConnection, requestShouldBeDelayed, (LoggingStarRating.InternalFeedbackRatingCallback) checkResponse -> {
+        LoggingStarRating.ImmediateRequestMaker.start(connectionQueue_.getTransport(), new Transport.Call("/o/sdk?", requestData), requestShouldBeDelayed, checkResponse -> {
             if (Logging.sharedInstance().isLoggingEnabled()) {
                 Log.d(Logging.TAG, "Processing remote config received response, receved response is null:[" + (checkResponse == null) + "]");
             }
@@ -0,0 +1,468 @@
+package com.kingtalk.logging;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A request to the server as it is queued.
+ *
+ * Parameters keep the order they were added in, their values are held in URL-encoded wire form.
+ * The device ID is not one of them: it is added last by {@link #encode(String)}, when the request
+ * is sent, so that a request can be sent for the current device ID, for the one it was recorded
+ * for or merge the two.
+ *
+ * In the request queue a request is stored with {@link #toRecord(long)}: a marker byte, the
+ * generation of its common parameters (see {@link CommonRequestParams}), the type, the device ID
+ * and the remaining parameters, strings prefixed with their length. Requests queued as text by
+ * older versions are read with {@link #parse(String)}.
+ */
+class Request {
+    /**
+     * Requests of different lanes do not wait for each other, see {@link LoggingStore#nextConnections(java.util.Set, int)}.
+     * Within a lane they are sent in the order they were queued. A device ID change goes with the
+     * sessions: the server merges the data of the old ID into the new one, so requests of other
+     * lanes count for the same user whichever ID they are sent with.
+     */
+    enum Lane {
+        CRASHES,
+        SESSIONS,
+        EVENTS,
+        USERS,
+        CONSENT,
+    }
+
+    /**
+     * Stored by ordinal, new types are only added at the end
+     */
+    enum Type {
+        BEGIN_SESSION(EvictionPolicy.PRIORITY_SESSION, Lane.SESSIONS),
+        UPDATE_SESSION(EvictionPolicy.PRIORITY_HEARTBEAT, Lane.SESSIONS),
+        END_SESSION(EvictionPolicy.PRIORITY_SESSION, Lane.SESSIONS),
+        CHANGE_DEVICE_ID(EvictionPolicy.PRIORITY_SESSION, Lane.SESSIONS),
+        TOKEN_SESSION(EvictionPolicy.PRIORITY_DEFAULT, Lane.USERS),
+        LOCATION(EvictionPolicy.PRIORITY_DEFAULT, Lane.USERS),
+        USER_DETAILS(EvictionPolicy.PRIORITY_SESSION, Lane.USERS),
+        REFERRER(EvictionPolicy.PRIORITY_DEFAULT, Lane.USERS),
+        CRASH(EvictionPolicy.PRIORITY_CRASH, Lane.CRASHES),
+        EVENTS(EvictionPolicy.PRIORITY_DEFAULT, Lane.EVENTS),
+        CONSENT(EvictionPolicy.PRIORITY_SESSION, Lane.CONSENT),
+        OTHER(EvictionPolicy.PRIORITY_DEFAULT, Lane.SESSIONS);
+
+        final int priority;
+        final Lane lane;
+
+        Type(final int priority, final Lane lane) {
+            this.priority = priority;
+            this.lane = lane;
+        }
+    }
+
+    static final byte MARKER = 2;
+
+    /**
+     * Merged event batches stay below this many characters of URL-encoded events
+     */
+    static final int MAX_MERGED_EVENTS_LENGTH = 32 * 1024;
+
+    // parameters that are set when a request is recorded, a merged request takes those of the later one
+    private static final String[] TIME_KEYS = {"timestamp", "hour", "dow"};
+    private static final String ENCODED_ARRAY_START = "%5B";
+    private static final String ENCODED_ARRAY_END = "%5D";
+    private static final String ENCODED_COMMA = "%2C";
+
+    final Type type;
+    private final Map<String, String> params_ = new LinkedHashMap<>();
+    private String deviceId_;
+
+    /**
+     * Sequence ID of the request in the queue, set when it is read back from the store
+     */
+    long seq = -1;
+
+    Request(final Type type) {
+        this.type = type;
+    }
+
+    /**
+     * Adds a parameter.
+     * @param wireValue the value as it is sent, URL-encoded where needed; null for a key without value
+     */
+    Request param(final String key, final Object wireValue) {
+        params_.put(key, wireValue == null ? null : String.valueOf(wireValue));
+        return this;
+    }
+
+    /**
+     * Adds the parameters of an "&amp;" separated query string.
+     */
+    Request query(final String query) {
+        int start = 0;
+        while (start < query.length()) {
+            int end = query.indexOf('&', start);
+            if (end < 0) {
+                end = query.length();
+            }
+            if (end > start) {
+                final int equals = query.indexOf('=', start);
+                if (equals < 0 || equals > end) {
+                    params_.put(query.substring(start, end), null);
+                } else {
+                    params_.put(query.substring(start, equals), query.substring(equals + 1, end));
+                }
+            }
+            start = end + 1;
+        }
+        return this;
+    }
+
+    /**
+     * Sets the device ID the request is sent for instead of the current one. For
+     * {@link Type#CHANGE_DEVICE_ID} it is the ID the current one is merged into.
+     */
+    Request deviceId(final String deviceId) {
+        deviceId_ = deviceId;
+        return this;
+    }
+
+    String deviceId() {
+        return deviceId_;
+    }
+
+    boolean hasParam(final String key) {
+        return params_.containsKey(key);
+    }
+
+    /**
+     * Returns the wire value of a parameter, or null if it has none.
+     */
+    String param(final String key) {
+        return params_.get(key);
+    }
+
+    Map<String, String> params() {
+        return Collections.unmodifiableMap(params_);
+    }
+
+    /**
+     * Returns the picture to upload along with user details, or an empty string if there is none.
+     */
+    String picturePath() {
+        final String path = params_.get(UserData.PICTURE_PATH_KEY);
+        return path == null ? "" : ConnectionProcessor.urlDecodeString(path);
+    }
+
+    /**
+     * Returns true if sending the request merges the current device ID into the one it carries.
+     */
+    boolean mergesDeviceId(final String currentDeviceId) {
+        return type == Type.CHANGE_DEVICE_ID && deviceId_ != null && !deviceId_.equals(currentDeviceId);
+    }
+
+    /**
+     * Returns one request that carries this request and the one recorded right after it, or null
+     * if they have to be sent on their own. Session heartbeats are merged into one with the summed
+     * duration, event batches into one with both events arrays. Both requests must be for the same
+     * device ID and have the same parameters apart from those and the time they were recorded.
+     * The merged request has the time of the later one.
+     */
+    Request mergedWith(final Request next) {
+        final String key;
+        if (type == Type.UPDATE_SESSION) {
+            key = "session_duration";
+        } else if (type == Type.EVENTS) {
+            key = "events";
+        } else {
+            return null;
+        }
+        if (next.type != type || !(deviceId_ == null ? next.deviceId_ == null : deviceId_.equals(next.deviceId_))
+                || !sameParamsBut(next, key)) {
+            return null;
+        }
+        final String value = params_.get(key);
+        final String nextValue = next.params_.get(key);
+        if (value == null || nextValue == null) {
+            return null;
+        }
+
+        final String merged;
+        if (type == Type.UPDATE_SESSION) {
+            try {
+                merged = String.valueOf(Long.parseLong(value) + Long.parseLong(nextValue));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        } else {
+            merged = mergeEvents(value, nextValue);
+            if (merged == null) {
+                return null;
+            }
+        }
+        final Request request = new Request(type).deviceId(next.deviceId_);
+        request.params_.putAll(next.params_);
+        request.params_.put(key, merged);
+        return request;
+    }
+
+    private boolean sameParamsBut(final Request other, final String key) {
+        if (!params_.keySet().equals(other.params_.keySet())) {
+            return false;
+        }
+        for (Map.Entry<String, String> param : params_.entrySet()) {
+            if (param.getKey().equals(key) || isTimeKey(param.getKey())) {
+                continue;
+            }
+            final String otherValue = other.params_.get(param.getKey());
+            if (param.getValue() == null ? otherValue != null : !param.getValue().equals(otherValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isTimeKey(final String key) {
+        for (String timeKey : TIME_KEYS) {
+            if (timeKey.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Joins two URL-encoded JSON arrays without decoding them.
+     * @return the joined array, or null if either is not an array or the result would be too long
+     */
+    private static String mergeEvents(final String events, final String nextEvents) {
+        if (!isEncodedArray(events) || !isEncodedArray(nextEvents)
+                || events.length() + nextEvents.length() > MAX_MERGED_EVENTS_LENGTH) {
+            return null;
+        }
+        final int empty = ENCODED_ARRAY_START.length() + ENCODED_ARRAY_END.length();
+        if (nextEvents.length() == empty) {
+            return events;
+        } else if (events.length() == empty) {
+            return nextEvents;
+        }
+        return events.substring(0, events.length() - ENCODED_ARRAY_END.length()) + ENCODED_COMMA + nextEvents.substring(ENCODED_ARRAY_START.length());
+    }
+
+    private static boolean isEncodedArray(final String value) {
+        return value.startsWith(ENCODED_ARRAY_START) && value.endsWith(ENCODED_ARRAY_END)
+                && value.length() >= ENCODED_ARRAY_START.length() + ENCODED_ARRAY_END.length();
+    }
+
+    /**
+     * Encodes the request in the wire format, with device_id as the last parameter.
+     * @param currentDeviceId the device ID in use, sent unless the request carries its own; null to leave it out
+     */
+    String encode(final String currentDeviceId) {
+        final StringBuilder wire = RequestWriter.buffer();
+        encode(currentDeviceId, wire);
+        return wire.toString();
+    }
+
+    /**
+     * Appends the request in the wire format to a buffer, see {@link #encode(String)}.
+     */
+    void encode(final String currentDeviceId, final StringBuilder wire) {
+        final int start = wire.length();
+        for (Map.Entry<String, String> param : params_.entrySet()) {
+            if (wire.length() > start) {
+                wire.append('&');
+            }
+            wire.append(param.getKey());
+            if (param.getValue() != null) {
+                wire.append('=').append(param.getValue());
+            }
+        }
+        final String deviceId = deviceId_ != null ? deviceId_ : currentDeviceId;
+        if (deviceId != null) {
+            wire.append("&device_id=");
+            RequestWriter.urlEncode(deviceId, wire);
+        }
+        if (mergesDeviceId(currentDeviceId) && currentDeviceId != null) {
+            wire.append("&old_device_id=");
+            RequestWriter.urlEncode(currentDeviceId, wire);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + encode(null);
+    }
+
+    /**
+     * Reads a request queued as text by an older version.
+     */
+    static Request parse(final String wire) {
+        final Request request = new Request(typeOf(wire));
+        request.query(wire);
+        if (request.hasParam("override_id")) {
+            request.deviceId(ConnectionProcessor.urlDecodeString(nullToEmpty(request.params_.remove("override_id"))));
+        } else if (request.hasParam("device_id")) {
+            request.deviceId(ConnectionProcessor.urlDecodeString(nullToEmpty(request.params_.remove("device_id"))));
+        }
+        return request;
+    }
+
+    private static Type typeOf(final String wire) {
+        if (wire.contains("&override_id=")) {
+            return Type.END_SESSION;
+        }
+        if (wire.contains("&device_id=")) {
+            return Type.CHANGE_DEVICE_ID;
+        }
+        if (wire.contains("&crash=")) {
+            return Type.CRASH;
+        }
+        if (wire.contains("&begin_session=")) {
+            return Type.BEGIN_SESSION;
+        }
+        if (wire.contains("&end_session=")) {
+            return Type.END_SESSION;
+        }
+        if (wire.contains("&consent=")) {
+            return Type.CONSENT;
+        }
+        if (wire.contains("&user_details")) {
+            return Type.USER_DETAILS;
+        }
+        if (wire.contains("&token_session=")) {
+            return Type.TOKEN_SESSION;
+        }
+        if (wire.contains("&events=")) {
+            return Type.EVENTS;
+        }
+        if (wire.contains("&session_duration=")) {
+            return Type.UPDATE_SESSION;
+        }
+        if (wire.contains("&location=")) {
+            return Type.LOCATION;
+        }
+        return Type.OTHER;
+    }
+
+    private static String nullToEmpty(final String value) {
+        return value == null ? "" : value;
+    }
+
+    static boolean isRecord(final byte[] record) {
+        return record.length > 0 && record[0] == MARKER;
+    }
+
+    /**
+     * Encodes the request for the queue, leaving out the common parameters of the given generation.
+     * @param generation generation of the common parameters, 0 to keep all parameters in the record
+     */
+    byte[] toRecord(final long generation) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        out.write(MARKER);
+        uvarint(out, generation);
+        out.write(type.ordinal());
+        string(out, deviceId_);
+        int count = 0;
+        for (String key : params_.keySet()) {
+            if (generation == 0 || !CommonRequestParams.isCommon(key)) {
+                count++;
+            }
+        }
+        uvarint(out, count);
+        for (Map.Entry<String, String> param : params_.entrySet()) {
+            if (generation == 0 || !CommonRequestParams.isCommon(param.getKey())) {
+                string(out, param.getKey());
+                string(out, param.getValue());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads a request written by {@link #toRecord(long)}.
+     * @param commonParams common parameters of the record's generation, put in front of the others; null if they are lost
+     * @return the request, or null if the record is truncated
+     */
+    static Request fromRecord(final byte[] record, final String commonParams) {
+        final int[] position = {1};
+        try {
+            uvarint(record, position);
+            final int ordinal = record[position[0]++];
+            final Request request = new Request(ordinal >= 0 && ordinal < Type.values().length ? Type.values()[ordinal] : Type.OTHER);
+            request.deviceId_ = string(record, position);
+            if (commonParams != null) {
+                request.query(commonParams);
+            }
+            for (long count = uvarint(record, position); count > 0; count--) {
+                request.params_.put(string(record, position), string(record, position));
+            }
+            return request;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the generation of common parameters a record written by {@link #toRecord(long)} belongs to.
+     */
+    static long generation(final byte[] record) {
+        return uvarint(record, new int[] {1});
+    }
+
+    /**
+     * Returns the priority of a record written by {@link #toRecord(long)} without reading all of it.
+     */
+    static int priority(final byte[] record) {
+        final int[] position = {1};
+        uvarint(record, position);
+        final int ordinal = position[0] < record.length ? record[position[0]] : -1;
+        return (ordinal >= 0 && ordinal < Type.values().length ? Type.values()[ordinal] : Type.OTHER).priority;
+    }
+
+    private static void uvarint(final ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long uvarint(final byte[] data, final int[] position) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = data[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Writes a string as its length plus one followed by its UTF-8 bytes, null is written as length 0.
+     */
+    private static void string(final ByteArrayOutputStream out, final String value) {
+        if (value == null) {
+            uvarint(out, 0);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        uvarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String string(final byte[] data, final int[] position) {
+        final int length = (int) uvarint(data, position) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (position[0] + length > data.length) {
+            throw new IndexOutOfBoundsException("string runs past the end of the record");
+        }
+        final String value = new String(data, position[0], length, StandardCharsets.UTF_8);
+        position[0] += length;
+        return value;
+    }
+}
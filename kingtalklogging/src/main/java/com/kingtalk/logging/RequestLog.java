@@ -0,0 +1,401 @@
+package com.kingtalk.logging;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * File-backed, append-only log of pending server requests.
+ *
+ * Records are appended to segment files, each named after the sequence number of its first
+ * record. A small head file holds the sequence number of the oldest record that has not been
+ * acknowledged yet, so acknowledging requests only moves that pointer. A segment file is
+ * deleted as soon as every record in it has been acknowledged.
+ *
+ * Only a small index of the pending records is kept in memory, the record data itself is read
+ * back from the segment files on demand through one file handle per segment.
+ *
+ * Each record is a 4 byte length, a 4 byte CRC32 of the record bytes and the record bytes.
+ * When the log is opened every segment is scanned and a segment is cut off at its first record
+ * that is incomplete or fails its checksum, so a write torn by the process dying only loses
+ * that record instead of the whole queue. A write that fails while the process lives on is cut
+ * off right away, so the offsets of the records appended after it stay right.
+ *
+ * Records removed out of order with {@link #remove(long)} stay in their segment, their sequence
+ * numbers are appended to a tombstone file that is applied and compacted when the log is opened.
+ *
+ * LoggingStore is created from several places, so logs are shared per directory, see {@link #open(File)}.
+ */
+class RequestLog implements StorageBackend.RecordQueue {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String HEAD_FILE_NAME = "head";
+    private static final String TOMBSTONE_FILE_NAME = "removed";
+    private static final int RECORD_HEADER_BYTES = 8;
+    static final int SEGMENT_MAX_BYTES = 64 * 1024;
+
+    private static final Map<String, RequestLog> openLogs_ = new HashMap<>();
+
+    private final File dir_;
+    private final List<Long> segments_ = new ArrayList<>();//base sequence numbers, oldest first
+    private final ArrayDeque<Entry> pending_ = new ArrayDeque<>();
+    private final RandomAccessFile headFile_;
+    private final RandomAccessFile tombstoneFile_;
+    private final Map<Long, RandomAccessFile> files_ = new HashMap<>();//open segment files by base sequence number
+    private RandomAccessFile tail_;
+    private long tailBytes_;
+    private long headSeq_;
+    private long nextSeq_;
+    private long bytes_;
+
+    /**
+     * Location of a single pending record inside its segment file.
+     */
+    private static class Entry {
+        final long seq;
+        final long segment;
+        final long offset;
+        final int length;
+
+        Entry(long seq, long segment, long offset, int length) {
+            this.seq = seq;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Returns the log stored in the given directory, opening it if needed.
+     * @param dir directory holding the segment files, created if it does not exist
+     * @throws IOException if the directory or its files cannot be read
+     */
+    static synchronized RequestLog open(final File dir) throws IOException {
+        final String key = dir.getAbsolutePath();
+        RequestLog log = openLogs_.get(key);
+        if (log == null) {
+            log = new RequestLog(dir);
+            openLogs_.put(key, log);
+        }
+        return log;
+    }
+
+    private RequestLog(final File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create request log directory " + dir);
+        }
+        dir_ = dir;
+        headFile_ = new RandomAccessFile(new File(dir, HEAD_FILE_NAME), "rw");
+        headSeq_ = headFile_.length() >= 8 ? headFile_.readLong() : 0;
+        tombstoneFile_ = new RandomAccessFile(new File(dir, TOMBSTONE_FILE_NAME), "rw");
+        load(readTombstones());
+    }
+
+    private Set<Long> readTombstones() throws IOException {
+        final Set<Long> tombstones = new HashSet<>();
+        tombstoneFile_.seek(0);
+        for (long i = tombstoneFile_.length() / 8; i > 0; i--) {
+            tombstones.add(tombstoneFile_.readLong());
+        }
+        return tombstones;
+    }
+
+    /**
+     * Reads the index of every segment, skipping records that were already acknowledged.
+     * Everything from the first incomplete or corrupt record of a segment on is cut off,
+     * so that new records are appended right after the last intact one.
+     */
+    private void load(final Set<Long> tombstones) throws IOException {
+        final List<Long> bases = new ArrayList<>();
+        final String[] names = dir_.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        bases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException ignored) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(bases);
+
+        nextSeq_ = headSeq_;
+        for (Long base : bases) {
+            final File file = segmentFile(base);
+            long seq = base;
+            long offset = 0;
+            final long fileLength = file.length();
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            final CRC32 crc = new CRC32();
+            byte[] data = new byte[0];
+            try {
+                while (offset + RECORD_HEADER_BYTES <= fileLength) {
+                    final int length = in.readInt();
+                    final int checksum = in.readInt();
+                    if (length < 0 || offset + RECORD_HEADER_BYTES + length > fileLength) {
+                        break;
+                    }
+                    if (data.length < length) {
+                        data = new byte[length];
+                    }
+                    in.readFully(data, 0, length);
+                    crc.reset();
+                    crc.update(data, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    if (seq >= headSeq_ && !tombstones.contains(seq)) {
+                        pending_.add(new Entry(seq, base, offset, length));
+                        bytes_ += length;
+                    }
+                    offset += RECORD_HEADER_BYTES + length;
+                    seq++;
+                }
+            } finally {
+                in.close();
+            }
+            if (offset < fileLength) {
+                truncate(file, offset);
+            }
+            segments_.add(base);
+            nextSeq_ = Math.max(nextSeq_, seq);
+            tailBytes_ = offset;
+        }
+        deleteAcknowledgedSegments();
+
+        // keep only the tombstones of records that are still in a segment
+        tombstoneFile_.setLength(0);
+        for (Long seq : tombstones) {
+            if (seq >= headSeq_ && seq < nextSeq_) {
+                tombstoneFile_.writeLong(seq);
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the end of the log.
+     * @param data record to add, must not be null
+     * @return the sequence number of the record, the log itself is not bounded
+     * @throws IOException if the record could not be written
+     */
+    @Override
+    public synchronized long append(final byte[] data) throws IOException {
+        final int recordBytes = RECORD_HEADER_BYTES + data.length;
+        if (segments_.isEmpty() || (tailBytes_ > 0 && tailBytes_ + recordBytes > SEGMENT_MAX_BYTES)) {
+            rollSegment();
+        } else if (tail_ == null) {
+            tail_ = segment(segments_.get(segments_.size() - 1));
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        final byte[] record = new byte[recordBytes];
+        putInt(record, 0, data.length);
+        putInt(record, 4, (int) crc.getValue());
+        System.arraycopy(data, 0, record, RECORD_HEADER_BYTES, data.length);
+        // the record goes right after the last complete one, whatever a failed write left behind
+        tail_.seek(tailBytes_);
+        try {
+            tail_.write(record);
+        } catch (IOException e) {
+            try {
+                tail_.setLength(tailBytes_);
+            } catch (IOException ignored) {
+                // the next record overwrites the partial one, what is left of it is cut off on open
+            }
+            throw e;
+        }
+
+        pending_.add(new Entry(nextSeq_, segments_.get(segments_.size() - 1), tailBytes_, data.length));
+        tailBytes_ += recordBytes;
+        bytes_ += data.length;
+        return nextSeq_++;
+    }
+
+    /**
+     * Returns up to max pending records, oldest first.
+     */
+    @Override
+    public synchronized List<StorageBackend.Record> peek(final int max) throws IOException {
+        final List<StorageBackend.Record> records = new ArrayList<>(Math.min(max, pending_.size()));
+        for (Entry entry : pending_) {
+            if (records.size() >= max) {
+                break;
+            }
+            records.add(new StorageBackend.Record(entry.seq, read(entry)));
+        }
+        return records;
+    }
+
+    /**
+     * Acknowledges all records up to upToSeq by moving the head pointer past them.
+     * Segments that no longer hold any pending record are deleted.
+     */
+    @Override
+    public synchronized void commit(final long upToSeq) throws IOException {
+        if (upToSeq < headSeq_) {
+            return;
+        }
+        while (!pending_.isEmpty() && pending_.peekFirst().seq <= upToSeq) {
+            // only the index is dropped, the data goes with its segment
+            bytes_ -= pending_.pollFirst().length;
+        }
+        moveHead();
+    }
+
+    /**
+     * Removes a single record. The oldest record is acknowledged like in {@link #commit(long)},
+     * any other one gets a tombstone.
+     */
+    @Override
+    public synchronized void remove(final long seq) throws IOException {
+        final Entry first = pending_.peekFirst();
+        if (first != null && first.seq == seq) {
+            commit(seq);
+            return;
+        }
+        for (Iterator<Entry> it = pending_.iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (entry.seq == seq) {
+                it.remove();
+                bytes_ -= entry.length;
+                tombstoneFile_.seek(tombstoneFile_.length());
+                tombstoneFile_.writeLong(seq);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return pending_.size();
+    }
+
+    @Override
+    public synchronized long bytes() {
+        return bytes_;
+    }
+
+    /**
+     * Acknowledges every pending record and deletes all segment files.
+     */
+    @Override
+    public synchronized void clear() throws IOException {
+        pending_.clear();
+        bytes_ = 0;
+        moveHead();
+    }
+
+    /**
+     * Moves the head pointer to the oldest pending record and deletes what it passed.
+     */
+    private void moveHead() throws IOException {
+        final Entry next = pending_.peekFirst();
+        headSeq_ = next == null ? nextSeq_ : next.seq;
+        headFile_.seek(0);
+        headFile_.writeLong(headSeq_);
+        if (next == null) {
+            tombstoneFile_.setLength(0);
+        }
+        deleteAcknowledgedSegments();
+    }
+
+    /**
+     * Closes the files of the log. The next {@link #open(File)} of its directory reads it from disk again.
+     */
+    synchronized void close() throws IOException {
+        synchronized (RequestLog.class) {
+            openLogs_.remove(dir_.getAbsolutePath());
+        }
+        for (RandomAccessFile file : files_.values()) {
+            file.close();
+        }
+        files_.clear();
+        tail_ = null;
+        headFile_.close();
+        tombstoneFile_.close();
+    }
+
+    private byte[] read(final Entry entry) throws IOException {
+        final byte[] data = new byte[entry.length];
+        final RandomAccessFile file = segment(entry.segment);
+        file.seek(entry.offset + RECORD_HEADER_BYTES);
+        file.readFully(data);
+        return data;
+    }
+
+    /**
+     * Returns the open file of a segment, it stays open until the segment is deleted.
+     */
+    private RandomAccessFile segment(final long base) throws IOException {
+        RandomAccessFile file = files_.get(base);
+        if (file == null) {
+            file = new RandomAccessFile(segmentFile(base), "rw");
+            files_.put(base, file);
+        }
+        return file;
+    }
+
+    private void rollSegment() throws IOException {
+        segments_.add(nextSeq_);
+        tail_ = segment(nextSeq_);
+        tailBytes_ = 0;
+    }
+
+    /**
+     * Deletes the segments whose records all precede the head pointer. Once nothing is pending
+     * the last segment goes as well, the next append starts a fresh one.
+     */
+    private void deleteAcknowledgedSegments() throws IOException {
+        while (!segments_.isEmpty()) {
+            final long end = segments_.size() > 1 ? segments_.get(1) : nextSeq_;
+            if (end > headSeq_) {
+                break;
+            }
+            if (segments_.size() == 1) {
+                tail_ = null;
+                tailBytes_ = 0;
+            }
+            final long base = segments_.remove(0);
+            final RandomAccessFile file = files_.remove(base);
+            if (file != null) {
+                file.close();
+            }
+            segmentFile(base).delete();
+        }
+    }
+
+    private static void putInt(final byte[] bytes, final int offset, final int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private File segmentFile(final long base) {
+        return new File(dir_, base + SEGMENT_SUFFIX);
+    }
+
+    private static void truncate(final File file, final long length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.kingtalk.logging;
+
+import java.util.TimeZone;
+
+/**
+ * Helpers that write requests without allocating more than the result.
+ *
+ * {@link #buffer()} hands out a StringBuilder confined to the calling thread, so building a
+ * request string costs only the String it ends in. {@link #urlEncode(CharSequence, StringBuilder)}
+ * percent-encodes like URLEncoder with UTF-8, but from a lookup table straight into the buffer.
+ * The local hour, day of week and time zone offset are derived from the epoch time and an offset
+ * that is looked up at most once a minute, instead of from a new Calendar each time.
+ */
+class RequestWriter {
+    /**
+     * A buffer that grew beyond this many characters is not kept for the next request
+     */
+    static final int MAX_KEPT_CAPACITY = 16 * 1024;
+
+    private static final long MINUTE_MS = 60 * 1000;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    // characters URLEncoder leaves as they are
+    private static final boolean[] UNRESERVED = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            UNRESERVED[c] = true;
+        }
+        UNRESERVED['.'] = true;
+        UNRESERVED['-'] = true;
+        UNRESERVED['*'] = true;
+        UNRESERVED['_'] = true;
+    }
+
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    private static volatile ZoneOffset zoneOffset_;
+
+    private RequestWriter() {}
+
+    /**
+     * Returns the empty buffer of the calling thread. It must not be held while calling code that
+     * takes the buffer as well.
+     */
+    static StringBuilder buffer() {
+        StringBuilder buffer = BUFFER.get();
+        if (buffer.capacity() > MAX_KEPT_CAPACITY) {
+            buffer = new StringBuilder(256);
+            BUFFER.set(buffer);
+        }
+        buffer.setLength(0);
+        return buffer;
+    }
+
+    /**
+     * Returns the value percent-encoded like URLEncoder does with UTF-8, the value itself if
+     * nothing needs to be encoded.
+     */
+    static String urlEncode(final String value) {
+        final int length = value.length();
+        int i = 0;
+        while (i < length && isUnreserved(value.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return value;
+        }
+        final StringBuilder out = new StringBuilder(length + 16);
+        out.append(value, 0, i);
+        urlEncode(value.subSequence(i, length), out);
+        return out.toString();
+    }
+
+    /**
+     * Appends the value percent-encoded like URLEncoder does with UTF-8: letters, digits and
+     * ".-*_" as they are, a space as "+", everything else as the %XX escapes of its UTF-8 bytes.
+     * A surrogate without its pair is encoded as "?", like URLEncoder does.
+     */
+    static void urlEncode(final CharSequence value, final StringBuilder out) {
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (isUnreserved(c)) {
+                out.append(c);
+            } else if (c == ' ') {
+                out.append('+');
+            } else if (c < 0x80) {
+                escape(c, out);
+            } else if (c < 0x800) {
+                escape(0xC0 | (c >> 6), out);
+                escape(0x80 | (c & 0x3F), out);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                escape(0xF0 | (codePoint >> 18), out);
+                escape(0x80 | ((codePoint >> 12) & 0x3F), out);
+                escape(0x80 | ((codePoint >> 6) & 0x3F), out);
+                escape(0x80 | (codePoint & 0x3F), out);
+            } else if (Character.isSurrogate(c)) {
+                escape('?', out);
+            } else {
+                escape(0xE0 | (c >> 12), out);
+                escape(0x80 | ((c >> 6) & 0x3F), out);
+                escape(0x80 | (c & 0x3F), out);
+            }
+        }
+    }
+
+    private static boolean isUnreserved(final char c) {
+        return c < 128 && UNRESERVED[c];
+    }
+
+    private static void escape(final int b, final StringBuilder out) {
+        out.append('%').append(HEX[(b >> 4) & 0x0F]).append(HEX[b & 0x0F]);
+    }
+
+    /**
+     * Returns the offset of the default time zone from UTC in minutes at the given time.
+     */
+    static int timezoneOffsetMinutes(final long timeMs) {
+        return (int) (offsetMs(timeMs) / MINUTE_MS);
+    }
+
+    /**
+     * Returns the hour of the day in the default time zone at the given time, 0 to 23.
+     */
+    static int hourOfDay(final long timeMs) {
+        return (int) (floorMod(timeMs + offsetMs(timeMs), DAY_MS) / HOUR_MS);
+    }
+
+    /**
+     * Returns the day of the week in the default time zone at the given time, 0 for Sunday to 6
+     * for Saturday.
+     */
+    static int dayOfWeek(final long timeMs) {
+        final long localMs = timeMs + offsetMs(timeMs);
+        final long days = (localMs - floorMod(localMs, DAY_MS)) / DAY_MS;
+        // 1 January 1970 was a Thursday
+        return (int) floorMod(days + 4, 7);
+    }
+
+    private static long floorMod(final long value, final long divisor) {
+        final long mod = value % divisor;
+        return mod < 0 ? mod + divisor : mod;
+    }
+
+    /**
+     * Returns the offset of the default time zone at the given time. It is looked up again for
+     * every minute, so a changed zone or a daylight saving switch is seen within a minute.
+     */
+    private static long offsetMs(final long timeMs) {
+        ZoneOffset zoneOffset = zoneOffset_;
+        if (zoneOffset == null || timeMs < zoneOffset.from || timeMs >= zoneOffset.from + MINUTE_MS) {
+            final long from = timeMs - floorMod(timeMs, MINUTE_MS);
+            zoneOffset = new ZoneOffset(from, TimeZone.getDefault().getOffset(from));
+            zoneOffset_ = zoneOffset;
+        }
+        return zoneOffset.offsetMs;
+    }
+
+    private static final class ZoneOffset {
+        // start of the minute the offset was looked up for
+        final long from;
+        final long offsetMs;
+
+        ZoneOffset(final long from, final long offsetMs) {
+            this.from = from;
+            this.offsetMs = offsetMs;
+        }
+    }
+}
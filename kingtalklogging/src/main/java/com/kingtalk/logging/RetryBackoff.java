@@ -0,0 +1,112 @@
+package com.kingtalk.logging;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Decides when the request queue may be sent again after the server could not be reached or
+ * answered with an error.
+ *
+ * Every consecutive failure doubles the ceiling of the wait, starting at {@link #BASE_DELAY_MS}
+ * and capped at {@link #MAX_DELAY_MS}. The wait itself is picked at random between zero and the
+ * ceiling, so that devices which failed together do not all come back at the same moment. If
+ * the server asked for a longer wait with Retry-After, that is used instead. A request that
+ * goes through resets the backoff.
+ */
+class RetryBackoff {
+    static final long BASE_DELAY_MS = 5000;
+    static final long MAX_DELAY_MS = 10 * 60 * 1000;
+    /**
+     * Longest Retry-After that is honoured
+     */
+    static final long MAX_RETRY_AFTER_MS = 60 * 60 * 1000;
+
+    private final Random random_;
+    private int failures_;
+    private long nextAttemptAt_;
+    private RetryListener listener_;
+
+    RetryBackoff(final Random random) {
+        random_ = random;
+    }
+
+    synchronized void setListener(final RetryListener listener) {
+        listener_ = listener;
+    }
+
+    /**
+     * Returns true if the queue may be sent at the given time.
+     */
+    synchronized boolean canAttempt(final long now) {
+        return now >= nextAttemptAt_;
+    }
+
+    synchronized int failures() {
+        return failures_;
+    }
+
+    /**
+     * Puts off the next attempt after a failure.
+     * @param retryAfterMs how long the server asked to wait, 0 if it did not
+     * @return how long the next attempt is put off
+     */
+    long failed(final long retryAfterMs, final long now) {
+        final RetryListener listener;
+        final int failures;
+        final long delay;
+        synchronized (this) {
+            failures = ++failures_;
+            final long ceiling = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(failures - 1, 20));
+            delay = Math.max((long) (random_.nextDouble() * ceiling), Math.min(retryAfterMs, MAX_RETRY_AFTER_MS));
+            nextAttemptAt_ = now + delay;
+            listener = listener_;
+        }
+        if (listener != null) {
+            listener.onRetryScheduled(failures, delay);
+        }
+        return delay;
+    }
+
+    /**
+     * Resets the backoff after the server took a request.
+     */
+    void succeeded() {
+        final RetryListener listener;
+        final int failures;
+        synchronized (this) {
+            failures = failures_;
+            if (failures == 0) {
+                return;
+            }
+            failures_ = 0;
+            nextAttemptAt_ = 0;
+            listener = listener_;
+        }
+        if (listener != null) {
+            listener.onRecovered(failures);
+        }
+    }
+
+    /**
+     * Reads a Retry-After header value, either a number of seconds or an HTTP date.
+     * @return the wait it asks for in milliseconds, 0 if there is none or it cannot be read
+     */
+    static long parseRetryAfter(final String value, final long now) {
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException ignored) {
+            // not a number of seconds, try a date
+        }
+        try {
+            final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            return Math.max(0, format.parse(value.trim()).getTime() - now);
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+}
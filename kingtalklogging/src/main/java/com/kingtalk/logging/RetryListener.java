@@ -0,0 +1,22 @@
+package com.kingtalk.logging;
+
+/**
+ * Gets notified when sending to the server is put off after a failure and when it recovers,
+ * e.g. to collect metrics. Set with {@link ILogging#setRetryListener(RetryListener)}.
+ *
+ * Called on the thread that sent the request, so it should return quickly.
+ */
+public interface RetryListener {
+    /**
+     * Called when sending failed and the next attempt is put off
+     * @param consecutiveFailures number of failures in a row, including this one
+     * @param delayMs how long the next attempt is put off
+     */
+    void onRetryScheduled(int consecutiveFailures, long delayMs);
+
+    /**
+     * Called when a request went through after failures
+     * @param consecutiveFailures number of failures before it
+     */
+    void onRecovered(int consecutiveFailures);
+}
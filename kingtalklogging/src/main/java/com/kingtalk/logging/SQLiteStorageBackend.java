@@ -0,0 +1,240 @@
+package com.kingtalk.logging;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage backend on top of a SQLite database.
+ *
+ * Values are rows of a key/value table. Records of all queues share one table whose
+ * (queue, seq) index serves both reading the head of a queue and deleting acknowledged
+ * records, so neither has to scan the rest of the queue.
+ */
+class SQLiteStorageBackend extends SQLiteOpenHelper implements StorageBackend {
+    private static final String DATABASE_NAME = "logging_store.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_VALUES = "kv";
+    private static final String TABLE_RECORDS = "records";
+    private static final String COLUMN_KEY = "key";
+    private static final String COLUMN_VALUE = "value";
+    private static final String COLUMN_TYPE = "type";
+    private static final String COLUMN_SEQ = "seq";
+    private static final String COLUMN_QUEUE = "queue";
+    private static final String COLUMN_DATA = "data";
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_BOOLEAN = 2;
+
+    private final Map<String, SQLiteQueue> queues_ = new HashMap<>();
+
+    SQLiteStorageBackend(final Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_VALUES + " (" + COLUMN_KEY + " TEXT PRIMARY KEY, " + COLUMN_TYPE + " INTEGER NOT NULL, " + COLUMN_VALUE + " TEXT)");
+        db.execSQL("CREATE TABLE " + TABLE_RECORDS + " (" + COLUMN_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, " + COLUMN_QUEUE + " TEXT NOT NULL, " + COLUMN_DATA + " BLOB NOT NULL)");
+        db.execSQL("CREATE INDEX " + TABLE_RECORDS + "_queue_seq ON " + TABLE_RECORDS + " (" + COLUMN_QUEUE + ", " + COLUMN_SEQ + ")");
+    }
+
+    @Override
+    public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+        // only one version so far
+    }
+
+    private class SQLiteQueue implements RecordQueue {
+        private final String name_;
+        private int size_;
+        private long bytes_;
+
+        SQLiteQueue(final String name) {
+            name_ = name;
+            final Cursor cursor = getReadableDatabase().rawQuery("SELECT COUNT(*), IFNULL(SUM(LENGTH(" + COLUMN_DATA + ")), 0) FROM " + TABLE_RECORDS
+                    + " WHERE " + COLUMN_QUEUE + " = ?", new String[]{name});
+            try {
+                if (cursor.moveToFirst()) {
+                    size_ = cursor.getInt(0);
+                    bytes_ = cursor.getLong(1);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        public synchronized long append(final byte[] record) throws IOException {
+            final ContentValues row = new ContentValues();
+            row.put(COLUMN_QUEUE, name_);
+            row.put(COLUMN_DATA, record);
+            final long seq = getWritableDatabase().insert(TABLE_RECORDS, null, row);
+            if (seq == -1) {
+                throw new IOException("Could not insert record into " + name_);
+            }
+            size_++;
+            bytes_ += record.length;
+            return seq;
+        }
+
+        @Override
+        public synchronized List<Record> peek(final int max) {
+            final List<Record> records = new ArrayList<>(Math.min(max, size_));
+            final Cursor cursor = getReadableDatabase().query(TABLE_RECORDS, new String[]{COLUMN_SEQ, COLUMN_DATA}, COLUMN_QUEUE + " = ?", new String[]{name_},
+                    null, null, COLUMN_SEQ, String.valueOf(max));
+            try {
+                while (cursor.moveToNext()) {
+                    records.add(new Record(cursor.getLong(0), cursor.getBlob(1)));
+                }
+            } finally {
+                cursor.close();
+            }
+            return records;
+        }
+
+        @Override
+        public synchronized void commit(final long upToSeq) {
+            delete(COLUMN_QUEUE + " = ? AND " + COLUMN_SEQ + " <= ?", new String[]{name_, String.valueOf(upToSeq)});
+        }
+
+        @Override
+        public synchronized void remove(final long seq) {
+            delete(COLUMN_QUEUE + " = ? AND " + COLUMN_SEQ + " = ?", new String[]{name_, String.valueOf(seq)});
+        }
+
+        private void delete(final String where, final String[] args) {
+            final SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                bytes_ -= DatabaseUtils.longForQuery(db, "SELECT IFNULL(SUM(LENGTH(" + COLUMN_DATA + ")), 0) FROM " + TABLE_RECORDS + " WHERE " + where, args);
+                size_ -= db.delete(TABLE_RECORDS, where, args);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        @Override
+        public synchronized int size() {
+            return size_;
+        }
+
+        @Override
+        public synchronized long bytes() {
+            return bytes_;
+        }
+
+        @Override
+        public synchronized void clear() {
+            getWritableDatabase().delete(TABLE_RECORDS, COLUMN_QUEUE + " = ?", new String[]{name_});
+            size_ = 0;
+            bytes_ = 0;
+        }
+    }
+
+    private Object readValue(final String key) {
+        final Cursor cursor = getReadableDatabase().query(TABLE_VALUES, new String[]{COLUMN_TYPE, COLUMN_VALUE}, COLUMN_KEY + " = ?", new String[]{key},
+                null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            final String value = cursor.getString(1);
+            return cursor.getInt(0) == TYPE_BOOLEAN ? Boolean.valueOf(value) : value;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        final Object value = readValue(key);
+        return value instanceof String ? (String) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        final Object value = readValue(key);
+        return value instanceof Boolean ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public Map<String, Object> getAll() {
+        final Map<String, Object> values = new HashMap<>();
+        final Cursor cursor = getReadableDatabase().query(TABLE_VALUES, new String[]{COLUMN_KEY, COLUMN_TYPE, COLUMN_VALUE}, null, null,
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                final String value = cursor.getString(2);
+                values.put(cursor.getString(0), cursor.getInt(1) == TYPE_BOOLEAN ? Boolean.valueOf(value) : value);
+            }
+        } finally {
+            cursor.close();
+        }
+        return values;
+    }
+
+    @Override
+    public void apply(final Map<String, Object> changes) {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, Object> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    db.delete(TABLE_VALUES, COLUMN_KEY + " = ?", new String[]{change.getKey()});
+                } else {
+                    final ContentValues row = new ContentValues();
+                    row.put(COLUMN_KEY, change.getKey());
+                    row.put(COLUMN_TYPE, change.getValue() instanceof Boolean ? TYPE_BOOLEAN : TYPE_STRING);
+                    row.put(COLUMN_VALUE, change.getValue().toString());
+                    db.insertWithOnConflict(TABLE_VALUES, null, row, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public void commit(final Map<String, Object> changes) {
+        apply(changes);
+    }
+
+    @Override
+    public void flush() {
+        // transactions are committed before apply returns
+    }
+
+    @Override
+    public synchronized RecordQueue queue(final String name) {
+        SQLiteQueue queue = queues_.get(name);
+        if (queue == null) {
+            queue = new SQLiteQueue(name);
+            queues_.put(name, queue);
+        }
+        return queue;
+    }
+
+    @Override
+    public synchronized void clear() {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.delete(TABLE_VALUES, null, null);
+        db.delete(TABLE_RECORDS, null, null);
+        for (SQLiteQueue queue : queues_.values()) {
+            synchronized (queue) {
+                queue.size_ = 0;
+                queue.bytes_ = 0;
+            }
+        }
+    }
+}
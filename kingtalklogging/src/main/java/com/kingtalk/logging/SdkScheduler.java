@@ -0,0 +1,163 @@
+package com.kingtalk.logging;
+
+import android.os.Build;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads the SDK runs its background work on.
+ *
+ * Work goes to one of three lanes: {@link Lane#IO} for the disk, {@link Lane#NETWORK} for requests
+ * to the server and {@link Lane#TIMER} for delayed and periodic tasks. Each lane has a fixed
+ * maximum of threads, which are only started when there is work and stop again once they were
+ * idle for {@link #IDLE_TIMEOUT_MS}. Timer tasks should be short, delayed work for another lane
+ * is handed to it when it is due.
+ *
+ * A single instance is shared by the process, see {@link #shared()}. Logging shuts it down
+ * when it halts. All threads are daemon threads named after their lane.
+ */
+class SdkScheduler {
+    enum Lane {
+        IO(1),
+        NETWORK(Logging.MAX_PARALLEL_REQUESTS),
+        TIMER(1);
+
+        final int threads;
+
+        Lane(final int threads) {
+            this.threads = threads;
+        }
+    }
+
+    static final long IDLE_TIMEOUT_MS = 30000;
+
+    private static SdkScheduler shared_;
+
+    private final ThreadPoolExecutor io_;
+    private final ThreadPoolExecutor network_;
+    private final ScheduledThreadPoolExecutor timer_;
+
+    /**
+     * Returns the scheduler of the process, creating a new one if there is none or it was shut down.
+     */
+    static synchronized SdkScheduler shared() {
+        if (shared_ == null || shared_.isShutdown()) {
+            shared_ = new SdkScheduler();
+        }
+        return shared_;
+    }
+
+    /**
+     * Shuts the scheduler of the process down, see {@link #shutdown()}. The next call to
+     * {@link #shared()} creates a new one.
+     */
+    static synchronized void shutdownShared() {
+        if (shared_ != null) {
+            shared_.shutdown();
+            shared_ = null;
+        }
+    }
+
+    SdkScheduler() {
+        io_ = pool(Lane.IO);
+        network_ = pool(Lane.NETWORK);
+        timer_ = new ScheduledThreadPoolExecutor(Lane.TIMER.threads, new LaneThreadFactory(Lane.TIMER));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // cancelled tasks would otherwise stay queued until they are due
+            timer_.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    private static ThreadPoolExecutor pool(final Lane lane) {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(lane.threads, lane.threads, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new LaneThreadFactory(lane));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private ExecutorService executor(final Lane lane) {
+        switch (lane) {
+            case IO:
+                return io_;
+            case NETWORK:
+                return network_;
+            case TIMER:
+            default:
+                return timer_;
+        }
+    }
+
+    /**
+     * Runs a task on a lane as soon as one of its threads is free.
+     */
+    Future<?> execute(final Lane lane, final Runnable task) {
+        return executor(lane).submit(task);
+    }
+
+    /**
+     * Runs a task with a result on a lane as soon as one of its threads is free.
+     */
+    <T> Future<T> submit(final Lane lane, final Callable<T> task) {
+        return executor(lane).submit(task);
+    }
+
+    /**
+     * Runs a task on a lane once the delay has passed.
+     * @return cancels the task as long as it was not handed to its lane yet
+     */
+    ScheduledFuture<?> schedule(final Lane lane, final Runnable task, final long delayMs) {
+        if (lane == Lane.TIMER) {
+            return timer_.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        }
+        return timer_.schedule(() -> {
+            execute(lane, task);
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task on the timer lane again and again, each time the delay after the previous run ended.
+     */
+    ScheduledFuture<?> scheduleWithFixedDelay(final Runnable task, final long initialDelayMs, final long delayMs) {
+        return timer_.scheduleWithFixedDelay(task, initialDelayMs, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops the delayed tasks and lets the io and network lanes finish what they were given,
+     * without taking new tasks.
+     */
+    void shutdown() {
+        timer_.shutdownNow();
+        io_.shutdown();
+        network_.shutdown();
+    }
+
+    boolean isShutdown() {
+        return timer_.isShutdown();
+    }
+
+    private static class LaneThreadFactory implements ThreadFactory {
+        private final String prefix_;
+        private final AtomicInteger count_ = new AtomicInteger();
+
+        LaneThreadFactory(final Lane lane) {
+            prefix_ = "Logging-" + lane.name().toLowerCase(Locale.US) + "-";
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, prefix_ + count_.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
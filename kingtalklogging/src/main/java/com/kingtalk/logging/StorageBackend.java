@@ -0,0 +1,122 @@
+package com.kingtalk.logging;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistence used by {@link LoggingStore}: a key/value store for configuration values and
+ * named record queues for the pending requests and events.
+ *
+ * Implementations must be thread safe, a single instance is shared by every LoggingStore.
+ */
+interface StorageBackend {
+    String QUEUE_CONNECTIONS = "connections";
+    String QUEUE_EVENTS = "events";
+    String QUEUE_DEAD_LETTERS = "dead_letters";
+
+    /**
+     * Values that change while the app is used. Backends that rewrite a whole file per change keep
+     * these in a file of their own, so updating them does not rewrite large, rarely changing values
+     * like the remote config or the device ID.
+     */
+    Set<String> HOT_KEYS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            LoggingStore.LOCATION_PREFERENCE,
+            LoggingStore.LOCATION_CITY_PREFERENCE,
+            LoggingStore.LOCATION_COUNTRY_CODE_PREFERENCE,
+            LoggingStore.LOCATION_IP_ADDRESS_PREFERENCE,
+            LoggingStore.LOCATION_DISABLED_PREFERENCE,
+            LoggingStore.STAR_RATING_PREFERENCE)));
+
+    String getString(String key, String defValue);
+
+    boolean getBoolean(String key, boolean defValue);
+
+    /**
+     * Returns a copy of all stored values.
+     */
+    Map<String, Object> getAll();
+
+    /**
+     * Writes a set of changes in one go, possibly persisting them in the background.
+     * @param changes new values by key, a value is either a String, a Boolean or null to remove the key
+     */
+    void apply(Map<String, Object> changes);
+
+    /**
+     * Same as {@link #apply(Map)}, but returns only once the changes are persisted.
+     */
+    void commit(Map<String, Object> changes);
+
+    /**
+     * Persists every change applied so far, blocking until done.
+     */
+    void flush();
+
+    /**
+     * Returns the queue with the given name, creating it if needed.
+     * Calling this again with the same name returns the same queue.
+     * @throws IOException if the queue cannot be opened
+     */
+    RecordQueue queue(String name) throws IOException;
+
+    /**
+     * Removes all values and empties every queue.
+     */
+    void clear() throws IOException;
+
+    /**
+     * A queued record together with the sequence ID it was given when it was appended.
+     */
+    final class Record {
+        final long seq;
+        final byte[] data;
+
+        Record(final long seq, final byte[] data) {
+            this.seq = seq;
+            this.data = data;
+        }
+    }
+
+    /**
+     * FIFO queue of opaque records.
+     *
+     * Every appended record gets a sequence ID that is larger than the ID of any record appended
+     * before it, also across restarts. Consumers acknowledge records by ID with {@link #commit(long)},
+     * so a record that is sent twice or has the same content as another one is never confused with it.
+     */
+    interface RecordQueue {
+        /**
+         * Adds a record at the end of the queue.
+         * @return the sequence ID of the record, or -1 if the queue has no room left for it
+         */
+        long append(byte[] record) throws IOException;
+
+        /**
+         * Returns up to max records from the head of the queue, oldest first, without removing them.
+         */
+        java.util.List<Record> peek(int max) throws IOException;
+
+        /**
+         * Removes every record with a sequence ID up to and including upToSeq.
+         */
+        void commit(long upToSeq) throws IOException;
+
+        /**
+         * Removes a single record, wherever it is in the queue. Does nothing if there is no record with that ID.
+         */
+        void remove(long seq) throws IOException;
+
+        int size();
+
+        /**
+         * Returns the total size of the stored records, not counting any per-record overhead.
+         */
+        long bytes();
+
+        void clear() throws IOException;
+    }
+}
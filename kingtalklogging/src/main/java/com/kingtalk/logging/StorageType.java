@@ -0,0 +1,27 @@
+package com.kingtalk.logging;
+
+/**
+ * Where the SDK keeps its configuration values and its queues of pending requests and events,
+ * selected with {@link ILogging#init(android.app.Activity, int, long, StorageType)}.
+ *
+ * Switching an existing install from the default to {@link #FILE} or {@link #SQLITE} moves
+ * the stored data into the new backend.
+ */
+public enum StorageType {
+    /**
+     * SharedPreferences for values, append-only log and ring buffer files for the queues
+     */
+    PREFERENCES,
+    /**
+     * Heap only, nothing survives the process
+     */
+    MEMORY,
+    /**
+     * Plain files for everything, does not depend on Android APIs
+     */
+    FILE,
+    /**
+     * A SQLite database with an indexed record table
+     */
+    SQLITE,
+}
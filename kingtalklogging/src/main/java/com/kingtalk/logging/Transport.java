@@ -0,0 +1,96 @@
+package com.kingtalk.logging;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Sends requests to the server and reads its responses.
+ *
+ * {@link ConnectionProcessor} decides what to send and what a response means for the queue, the
+ * transport does the HTTP work: URL and body, checksum, compression, custom headers, TLS and
+ * keeping connections alive. {@link URLConnectionTransport} is used unless another one is set
+ * with {@link ConnectionQueue#setTransport(Transport)}.
+ *
+ * Implementations must be thread safe, a single instance is shared by every processor.
+ */
+interface Transport {
+    /**
+     * A request to the server.
+     */
+    final class Call {
+        /**
+         * Path with the query separator, like "/i?"
+         */
+        final String endpoint;
+        /**
+         * The url encoded request parameters, without the checksum. May be a buffer the caller
+         * reuses, it is only read during {@link Transport#send(Call)}.
+         */
+        final CharSequence data;
+        /**
+         * Picture to upload along with the request, empty for none
+         */
+        final String picturePath;
+        /**
+         * True to send the request in the body even if it is short
+         */
+        final boolean post;
+
+        Call(final String endpoint, final CharSequence data) {
+            this(endpoint, data, "", false);
+        }
+
+        Call(final String endpoint, final CharSequence data, final String picturePath, final boolean post) {
+            this.endpoint = endpoint;
+            this.data = data;
+            this.picturePath = picturePath;
+            this.post = post;
+        }
+    }
+
+    /**
+     * What the server responded.
+     */
+    final class Response {
+        final int code;
+        final byte[] body;
+        // lower case names
+        private final Map<String, String> headers_;
+
+        /**
+         * @param headers header values by lower case name
+         */
+        Response(final int code, final Map<String, String> headers, final byte[] body) {
+            this.code = code;
+            this.body = body;
+            headers_ = headers == null ? Collections.<String, String>emptyMap() : headers;
+        }
+
+        /**
+         * Returns true for 2xx response codes.
+         */
+        boolean isSuccess() {
+            return code >= 200 && code < 300;
+        }
+
+        /**
+         * Returns the value of a header, null if the server did not send it.
+         */
+        String header(final String name) {
+            return headers_.get(name.toLowerCase(Locale.US));
+        }
+
+        String bodyString() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Sends a request and reads the whole response.
+     * @throws IOException if the server could not be reached or the response could not be read
+     */
+    Response send(Call call) throws IOException;
+}
@@ -0,0 +1,367 @@
+package com.kingtalk.logging;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Sends requests with HttpURLConnection, the {@link Transport} used unless another one is set.
+ *
+ * Short requests go in the URL with the checksum appended, long ones and crashes are POSTed.
+ * POST bodies of at least {@link #GZIP_MIN_BYTES} are gzipped unless the server answered one with
+ * 415 Unsupported Media Type before; the call that got it is sent again plain. The whole response is read and its stream closed without disconnecting, which hands
+ * the socket back to the keep-alive pool for the next request.
+ */
+class URLConnectionTransport implements Transport {
+    private static final int CONNECT_TIMEOUT_IN_MILLISECONDS = 30000;
+    private static final int READ_TIMEOUT_IN_MILLISECONDS = 30000;
+
+    private static final String CHECKSUM_PARAM = "&checksum=";
+
+    /**
+     * POST bodies from this size on are gzipped, smaller ones do not gain enough
+     */
+    static final int GZIP_MIN_BYTES = 1024;
+
+    private static final int CHUNK_BYTES = 8 * 1024;
+
+    // reused for every body a thread writes
+    private static final ThreadLocal<byte[]> CHUNK = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_BYTES];
+        }
+    };
+
+    // set once the server answered a gzipped body with 415, other errors may have any cause
+    private volatile boolean gzipRejected_;
+
+    private final String serverURL_;
+    private final SSLSocketFactory sslSocketFactory_;
+    private final Map<String, String> requestHeaderCustomValues_;
+
+    /**
+     * @param sslSocketFactory factory for HTTPS connections, the same one for all requests so that their connections can be reused; null for the default one
+     * @param requestHeaderCustomValues headers added to every request, may be null
+     */
+    URLConnectionTransport(final String serverURL, final SSLSocketFactory sslSocketFactory, final Map<String, String> requestHeaderCustomValues) {
+        serverURL_ = serverURL;
+        sslSocketFactory_ = sslSocketFactory;
+        requestHeaderCustomValues_ = requestHeaderCustomValues;
+    }
+
+    @Override
+    public Response send(final Call call) throws IOException {
+        final Response response = exchange(call, !gzipRejected_);
+        ConnectionStats.requestSent();
+        if (response != null) {
+            return response;
+        }
+        gzipRejected_ = true;
+        if (Logging.sharedInstance().isLoggingEnabled()) {
+            Log.w(Logging.TAG, "Server does not take gzipped bodies, sending plain bodies from now on");
+        }
+        // the same request again with a plain body
+        return exchange(call, false);
+    }
+
+    /**
+     * Sends a call over a new or kept-alive connection and reads the response.
+     * @param gzipAllowed false to send the body plain whatever its size
+     * @return null if the server answered a gzipped body with 415 Unsupported Media Type
+     */
+    private Response exchange(final Call call, final boolean gzipAllowed) throws IOException {
+        final HttpURLConnection conn = open(call);
+        boolean responded = false;
+        try {
+            final boolean gzipped = write(conn, call, gzipAllowed);
+            final int responseCode = conn.getResponseCode();
+            responded = true;
+            final byte[] body = read(conn, responseCode);
+            if (gzipped && responseCode == 415) {
+                return null;
+            }
+            return new Response(responseCode, headers(conn), body);
+        } finally {
+            if (!responded) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private HttpURLConnection open(final Call call) throws IOException {
+        String urlStr = serverURL_ + call.endpoint;
+        if (sendsInUrl(call)) {
+            final String data = call.data.toString();
+            urlStr += data;
+            urlStr += CHECKSUM_PARAM + sha1Hash(data + ConnectionProcessor.salt);
+        }
+        final URL url = new URL(urlStr);
+        final HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+        if (conn instanceof HttpsURLConnection && sslSocketFactory_ != null) {
+            ((HttpsURLConnection) conn).setSSLSocketFactory(sslSocketFactory_);
+        }
+        conn.setConnectTimeout(CONNECT_TIMEOUT_IN_MILLISECONDS);
+        conn.setReadTimeout(READ_TIMEOUT_IN_MILLISECONDS);
+        conn.setUseCaches(false);
+        conn.setDoInput(true);
+        conn.setRequestMethod("GET");
+
+        if(requestHeaderCustomValues_ != null){
+            //if there are custom header values, add them
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.v(Logging.TAG, "Adding [" + requestHeaderCustomValues_.size() + "] custom header fields");
+            }
+            for (Map.Entry<String, String> entry : requestHeaderCustomValues_.entrySet())
+            {
+                String key = entry.getKey();
+                String value = entry.getValue();
+                if(key != null && value != null && !key.isEmpty()){
+                    conn.addRequestProperty(key, value);
+                }
+            }
+        }
+        return conn;
+    }
+
+    private static boolean sendsInUrl(final Call call) {
+        return !call.post && call.data.length() < 2048 && !call.data.toString().contains("&crash=");
+    }
+
+    /**
+     * Writes the picture upload or the POST body of a call, nothing for a GET.
+     * @return true if the body was gzipped
+     */
+    private boolean write(final HttpURLConnection conn, final Call call, final boolean gzipAllowed) throws IOException {
+        final boolean inUrl = sendsInUrl(call);
+        final String uploadPath = inUrl ? call.picturePath : "";
+        if (Logging.sharedInstance().isLoggingEnabled()) {
+            Log.d(Logging.TAG, "Got picturePath: " + uploadPath);
+        }
+        if (Logging.sharedInstance().isLoggingEnabled()) {
+            Log.v(Logging.TAG, "Is the HTTP POST forced: " + Logging.sharedInstance().isHttpPostForced());
+        }
+        if(!uploadPath.equals("")){
+            //Uploading files:
+            //http://stackoverflow.com/questions/2793150/how-to-use-java-net-urlconnection-to-fire-and-handle-http-requests
+
+            File binaryFile = new File(uploadPath);
+            conn.setDoOutput(true);
+            // Just generate some unique random value.
+            String boundary = Long.toHexString(System.currentTimeMillis());
+            // Line separator required by multipart/form-data.
+            String CRLF = "\r\n";
+            String charset = "UTF-8";
+            conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+            OutputStream output = conn.getOutputStream();
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, charset), true);
+            // Send binary file.
+            writer.append("--").append(boundary).append(CRLF);
+            writer.append("Content-Disposition: form-data; name=\"binaryFile\"; filename=\"").append(binaryFile.getName()).append("\"").append(CRLF);
+            writer.append("Content-Type: ").append(URLConnection.guessContentTypeFromName(binaryFile.getName())).append(CRLF);
+            writer.append("Content-Transfer-Encoding: binary").append(CRLF);
+            writer.append(CRLF).flush();
+            FileInputStream fileInputStream = new FileInputStream(binaryFile);
+            byte[] buffer = new byte[1024];
+            int len;
+            try {
+                while ((len = fileInputStream.read(buffer)) != -1) {
+                    output.write(buffer, 0, len);
+                }
+            }catch(IOException ex){
+                ex.printStackTrace();
+            }
+            output.flush(); // Important before continuing with writer!
+            writer.append(CRLF).flush(); // CRLF is important! It indicates end of boundary.
+            fileInputStream.close();
+
+            // End of multipart/form-data.
+            writer.append("--").append(boundary).append("--").append(CRLF).flush();
+            return false;
+        }
+        if(!inUrl || Logging.sharedInstance().isHttpPostForced()){
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.d(Logging.TAG, "Using HTTP POST");
+            }
+            conn.setDoOutput(true);
+            conn.setRequestMethod("POST");
+            return writeBody(conn, call.data, !inUrl, gzipAllowed);
+        }
+        if (Logging.sharedInstance().isLoggingEnabled()) {
+            Log.d(Logging.TAG, "Using HTTP GET");
+        }
+        conn.setDoOutput(false);
+        return false;
+    }
+
+    /**
+     * Writes the request as the body, encoded straight from the call's characters through a
+     * reused buffer. If asked to, "&checksum=" is appended with the hash of the request and the
+     * salt, computed over the same bytes while they are written. Bodies of at least
+     * {@link #GZIP_MIN_BYTES} are gzipped on the way if that is enabled and allowed, and sent in chunks as their length is not known up front; other bodies are
+     * sent with a fixed length so that the connection does not buffer them either.
+     * @return true if the body was gzipped
+     */
+    private static boolean writeBody(final HttpURLConnection conn, final CharSequence data, final boolean appendChecksum, final boolean gzipAllowed) throws IOException {
+        final MessageDigest digest = appendChecksum ? sha1() : null;
+        final int checksumLength = digest == null ? 0 : CHECKSUM_PARAM.length() + 2 * digest.getDigestLength();
+        final boolean gzip = gzipAllowed && Logging.sharedInstance().isGzipEnabled() && data.length() >= GZIP_MIN_BYTES;
+        if (gzip) {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.v(Logging.TAG, "Gzipping the request body of " + (data.length() + checksumLength) + " characters");
+            }
+            conn.setRequestProperty("Content-Encoding", "gzip");
+            conn.setChunkedStreamingMode(0);
+        } else if (isAscii(data)) {
+            // url encoded, one byte per character
+            conn.setFixedLengthStreamingMode(data.length() + checksumLength);
+        } else {
+            conn.setChunkedStreamingMode(0);
+        }
+        final byte[] chunk = CHUNK.get();
+        final OutputStream os = gzip ? new GZIPOutputStream(conn.getOutputStream(), chunk.length) : conn.getOutputStream();
+        try {
+            final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            final CharBuffer in = CharBuffer.wrap(data);
+            final ByteBuffer out = ByteBuffer.wrap(chunk);
+            boolean overflow;
+            do {
+                overflow = encoder.encode(in, out, true).isOverflow();
+                if (!overflow) {
+                    encoder.flush(out);
+                }
+                os.write(chunk, 0, out.position());
+                if (digest != null) {
+                    digest.update(chunk, 0, out.position());
+                }
+                out.clear();
+            } while (overflow);
+            if (digest != null) {
+                digest.update(String.valueOf(ConnectionProcessor.salt).getBytes(StandardCharsets.UTF_8));
+                os.write((CHECKSUM_PARAM + bytesToHex(digest.digest())).getBytes(StandardCharsets.UTF_8));
+            }
+        } finally {
+            os.close();
+        }
+        return gzip;
+    }
+
+    private static boolean isAscii(final CharSequence data) {
+        for (int i = 0; i < data.length(); i++) {
+            if (data.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a SHA-1 digest, or null if there is none and the request cannot be tamper-protected.
+     */
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (Throwable e) {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.e(Logging.TAG, "Cannot tamper-protect params", e);
+            }
+            return null;
+        }
+    }
+
+    private static Map<String, String> headers(final HttpURLConnection conn) {
+        final Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : conn.getHeaderFields().entrySet()) {
+            // the status line comes with a null name
+            if (entry.getKey() != null && !entry.getValue().isEmpty()) {
+                headers.put(entry.getKey().toLowerCase(Locale.US), entry.getValue().get(0));
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Reads the rest of the response and closes its stream, which lets the connection be reused.
+     * If that fails the connection is closed and what was read so far is returned.
+     */
+    private static byte[] read(final HttpURLConnection conn, final int responseCode) {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        InputStream stream = null;
+        try {
+            stream = responseCode >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            if (stream != null) {
+                final byte[] buffer = new byte[1024];
+                int len;
+                while ((len = stream.read(buffer)) != -1) {
+                    body.write(buffer, 0, len);
+                }
+            }
+        } catch (IOException e) {
+            conn.disconnect();
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {}
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private static String sha1Hash(String toHash) {
+        String hash = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+            byte[] bytes = toHash.getBytes(StandardCharsets.UTF_8);
+            digest.update(bytes, 0, bytes.length);
+            bytes = digest.digest();
+
+            // This is ~55x faster than looping and String.formating()
+            hash = bytesToHex( bytes );
+        }
+        catch( Throwable e ) {
+            if (Logging.sharedInstance().isLoggingEnabled()) {
+                Log.e(Logging.TAG, "Cannot tamper-protect params", e);
+            }
+        }
+        return hash;
+    }
+
+    // http://stackoverflow.com/questions/9655181/convert-from-byte-array-to-hex-string-in-java
+    final private static char[] hexArray = "0123456789ABCDEF".toCharArray();
+    private static String bytesToHex(byte[] bytes) {
+        char[] hexChars = new char[ bytes.length * 2 ];
+        for( int j = 0; j < bytes.length; j++ ) {
+            int v = bytes[ j ] & 0xFF;
+            hexChars[ j * 2 ] = hexArray[ v >>> 4 ];
+            hexChars[ j * 2 + 1 ] = hexArray[ v & 0x0F ];
+        }
+        return new String( hexChars ).toLowerCase();
+    }
+}
@@ -8,8 +8,6 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.io.UnsupportedEncodingException;
-import java.net.URL;
-import java.net.URLDecoder;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -21,7 +19,7 @@ class UserData {
     private static final String ORG_KEY = "organization";
     private static final String PHONE_KEY = "phone";
     private static final String PICTURE_KEY = "picture";
-    private static final String PICTURE_PATH_KEY = "picturePath";
+    static final String PICTURE_PATH_KEY = "picturePath";
     private static final String GENDER_KEY = "gender";
     private static final String BYEAR_KEY = "byear";
     private static final String CUSTOM_KEY = "custom";
@@ -459,25 +457,4 @@ class UserData {
             }
         }
     }
-
-    //for url query parsing
-    static String getPicturePathFromQuery(URL url){
-        String query = url.getQuery();
-        String[] pairs = query.split("&");
-        String ret = "";
-        if(url.getQuery().contains(PICTURE_PATH_KEY)){
-            for (String pair : pairs) {
-                int idx = pair.indexOf("=");
-                if(pair.substring(0, idx).equals(PICTURE_PATH_KEY)){
-                    try {
-                        ret = URLDecoder.decode(pair.substring(idx + 1), "UTF-8");
-                    } catch (UnsupportedEncodingException e) {
-                        ret = "";
-                    }
-                    break;
-                }
-            }
-        }
-        return ret;
-    }
 }
\ No newline at end of file
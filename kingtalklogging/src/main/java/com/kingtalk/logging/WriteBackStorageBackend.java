@@ -0,0 +1,132 @@
+package com.kingtalk.logging;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Write-back cache in front of another backend.
+ *
+ * All values are loaded once and served from memory. Changes only mark their keys dirty;
+ * the dirty keys are handed to the wrapped backend in one batch once there are
+ * {@link #MAX_DIRTY_KEYS} of them or the oldest one has waited {@link #MAX_DIRTY_AGE_MS},
+ * or right away through {@link #flush()}. The age is checked on every change and by a task
+ * on the io lane of the {@link SdkScheduler}, scheduled when the first key turns dirty, so
+ * a change is written even if no other one follows. Queues are not cached, they are already
+ * written record by record.
+ */
+class WriteBackStorageBackend implements StorageBackend {
+    static final int MAX_DIRTY_KEYS = 16;
+    static final long MAX_DIRTY_AGE_MS = 5000;
+
+    private final StorageBackend delegate_;
+    private final Map<String, Object> values_;
+    private final Map<String, Object> dirty_ = new HashMap<>();
+    private long firstDirtyAt_;
+    private ScheduledFuture<?> flushTask_;
+
+    WriteBackStorageBackend(final StorageBackend delegate) {
+        delegate_ = delegate;
+        values_ = new HashMap<>(delegate.getAll());
+    }
+
+    @Override
+    public synchronized String getString(final String key, final String defValue) {
+        final Object value = values_.get(key);
+        return value instanceof String ? (String) value : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(final String key, final boolean defValue) {
+        final Object value = values_.get(key);
+        return value instanceof Boolean ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public synchronized Map<String, Object> getAll() {
+        return new HashMap<>(values_);
+    }
+
+    @Override
+    public synchronized void apply(final Map<String, Object> changes) {
+        if (dirty_.isEmpty()) {
+            firstDirtyAt_ = System.currentTimeMillis();
+        }
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                values_.remove(change.getKey());
+            } else {
+                values_.put(change.getKey(), change.getValue());
+            }
+            dirty_.put(change.getKey(), change.getValue());
+        }
+        flushIfDue();
+        scheduleFlush();
+    }
+
+    @Override
+    public synchronized void commit(final Map<String, Object> changes) {
+        apply(changes);
+        flush();
+    }
+
+    /**
+     * Hands the dirty keys to the wrapped backend if there are enough of them or they are old enough.
+     */
+    synchronized void flushIfDue() {
+        if (dirty_.size() >= MAX_DIRTY_KEYS || (!dirty_.isEmpty() && System.currentTimeMillis() - firstDirtyAt_ >= MAX_DIRTY_AGE_MS)) {
+            delegate_.apply(new HashMap<>(dirty_));
+            dirty_.clear();
+        }
+    }
+
+    /**
+     * Makes sure a task checks the dirty keys again once the oldest one is due. A task that
+     * finds them flushed already does nothing, one that runs early schedules the next.
+     */
+    private void scheduleFlush() {
+        if (dirty_.isEmpty() || flushTask_ != null) {
+            return;
+        }
+        final long delay = Math.max(0, firstDirtyAt_ + MAX_DIRTY_AGE_MS - System.currentTimeMillis());
+        flushTask_ = SdkScheduler.shared().schedule(SdkScheduler.Lane.IO, () -> {
+            synchronized (WriteBackStorageBackend.this) {
+                flushTask_ = null;
+                flushIfDue();
+                scheduleFlush();
+            }
+        }, delay);
+    }
+
+    /**
+     * Writes all dirty keys to the wrapped backend and returns once they are persisted.
+     */
+    @Override
+    public synchronized void flush() {
+        if (flushTask_ != null) {
+            flushTask_.cancel(false);
+            flushTask_ = null;
+        }
+        if (!dirty_.isEmpty()) {
+            delegate_.commit(new HashMap<>(dirty_));
+            dirty_.clear();
+        }
+    }
+
+    @Override
+    public RecordQueue queue(final String name) throws IOException {
+        return delegate_.queue(name);
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        if (flushTask_ != null) {
+            flushTask_.cancel(false);
+            flushTask_ = null;
+        }
+        values_.clear();
+        dirty_.clear();
+        delegate_.clear();
+    }
+}
@@ -0,0 +1,188 @@
+package com.kingtalk.logging;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ConnectionProcessorTest {
+    private MockServer server;
+    private boolean bulkModeEnabled;
+    private boolean gzipEnabled;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockServer();
+        ConnectionProcessor.salt = null;
+        bulkModeEnabled = Logging.sharedInstance().isBulkModeEnabled();
+        gzipEnabled = Logging.sharedInstance().isGzipEnabled();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        Logging.sharedInstance().setBulkModeEnabled(bulkModeEnabled);
+        Logging.sharedInstance().setGzipEnabled(gzipEnabled);
+    }
+
+    @Test
+    public void deepQueueGoesToTheBulkEndpoint() throws Exception {
+        Logging.sharedInstance().setBulkModeEnabled(true);
+        final LoggingStore store = newStore(ConnectionProcessor.BULK_MIN_QUEUED + 2);
+        processor(store, new RetryBackoff(new Random(0))).run();
+        assertTrue(store.isEmptyConnections());
+
+        final List<MockServer.Received> received = server.received();
+        assertEquals(1, received.size());
+        assertEquals("/i/bulk", received.get(0).path);
+        final String requests = received.get(0).data.substring(received.get(0).data.indexOf("&requests=") + "&requests=".length());
+        final JSONArray batch = new JSONArray(ConnectionProcessor.urlDecodeString(requests));
+        assertEquals(ConnectionProcessor.BULK_MIN_QUEUED + 2, batch.length());
+        assertTrue(batch.getString(0).startsWith("app_key=key&timestamp=1500000000000&"));
+        assertTrue(batch.getString(0).endsWith("&device_id=device"));
+    }
+
+    @Test
+    public void bulkIsLimitedByEncodedBytes() throws Exception {
+        Logging.sharedInstance().setBulkModeEnabled(true);
+        // three UTF-8 bytes per char, the batch would fit if chars were counted
+        final StringBuilder name = new StringBuilder();
+        while (name.length() < 3000) {
+            name.append('\u4e2d');
+        }
+        final LoggingStore store = new LoggingStore(new MemoryStorageBackend());
+        for (int i = 0; i < 12; i++) {
+            store.addConnection(new Request(Request.Type.USER_DETAILS).param("app_key", "key").param("name", name.toString()));
+        }
+        processor(store, new RetryBackoff(new Random(0))).run();
+        assertTrue(store.isEmptyConnections());
+
+        final MockServer.Received bulk = server.received().get(0);
+        assertEquals("/i/bulk", bulk.path);
+        final String requests = bulk.data.substring(bulk.data.indexOf("&requests=") + "&requests=".length());
+        final JSONArray batch = new JSONArray(ConnectionProcessor.urlDecodeString(requests));
+        int bytes = 0;
+        for (int i = 0; i < batch.length(); i++) {
+            bytes += ConnectionProcessor.utf8Length(batch.getString(i));
+        }
+        assertTrue(batch.length() > 1 && batch.length() < 12);
+        assertTrue(bytes <= ConnectionProcessor.BULK_MAX_BYTES);
+    }
+
+    @Test
+    public void utf8LengthCountsEncodedBytes() {
+        final String value = "a\u00e9\u4e2d\ud83d\ude00";
+        assertEquals(value.getBytes(StandardCharsets.UTF_8).length, ConnectionProcessor.utf8Length(value));
+        assertEquals(0, ConnectionProcessor.utf8Length(""));
+    }
+
+    @Test
+    public void rejectedBulkIsSentOneByOne() {
+        Logging.sharedInstance().setBulkModeEnabled(true);
+        server.enqueue(400, null);
+        final LoggingStore store = newStore(ConnectionProcessor.BULK_MIN_QUEUED);
+        processor(store, new RetryBackoff(new Random(0))).run();
+        assertTrue(store.isEmptyConnections());
+
+        final List<MockServer.Received> received = server.received();
+        assertEquals(1 + ConnectionProcessor.BULK_MIN_QUEUED, received.size());
+        assertEquals("/i/bulk", received.get(0).path);
+        for (int i = 1; i < received.size(); i++) {
+            assertEquals("/i", received.get(i).path);
+            assertTrue(received.get(i).data.startsWith("app_key=key&timestamp=" + (1500000000000L + i - 1) + "&"));
+        }
+    }
+
+    @Test
+    public void serverErrorIsRetriedAfterRetryAfter() {
+        Logging.sharedInstance().setBulkModeEnabled(false);
+        server.enqueue(503, "7");
+        final LoggingStore store = newStore(1);
+        final RetryBackoff backoff = new RetryBackoff(new Random(0));
+
+        final long failedAt = System.currentTimeMillis();
+        processor(store, backoff).run();
+        assertFalse(store.isEmptyConnections());
+        assertEquals(1, backoff.failures());
+        assertFalse(backoff.canAttempt(failedAt + 6000));
+        assertTrue(backoff.canAttempt(System.currentTimeMillis() + 7000));
+
+        processor(store, backoff).run();
+        assertTrue(store.isEmptyConnections());
+        assertEquals(0, backoff.failures());
+
+        final List<MockServer.Received> received = server.received();
+        assertEquals(2, received.size());
+        assertEquals(received.get(0).data, received.get(1).data);
+    }
+
+    @Test
+    public void laterProcessorsSkipGzipAfterItWasRefused() {
+        Logging.sharedInstance().setBulkModeEnabled(false);
+        Logging.sharedInstance().setGzipEnabled(true);
+        final LoggingStore store = new LoggingStore(new MemoryStorageBackend());
+        final ConnectionQueue queue = new ConnectionQueue();
+        queue.setServerURL(server.url());
+        queue.setLoggingStore(store);
+        queue.setDeviceId(new DeviceId(store, "device"));
+
+        server.enqueue(415, null);
+        store.addConnection(largeEvents(0));
+        queue.createConnectionProcessor().run();
+        store.addConnection(largeEvents(1));
+        queue.createConnectionProcessor().run();
+        assertTrue(store.isEmptyConnections());
+
+        final List<MockServer.Received> received = server.received();
+        assertEquals(3, received.size());
+        assertTrue(received.get(0).gzipped);
+        assertFalse(received.get(1).gzipped);
+        assertFalse(received.get(2).gzipped);
+        assertTrue(received.get(2).data.startsWith("app_key=key&timestamp=1500000000001&"));
+
+        // new settings, new transport
+        queue.setServerURL(server.url());
+        store.addConnection(largeEvents(2));
+        queue.createConnectionProcessor().run();
+        assertTrue(server.received().get(3).gzipped);
+    }
+
+    /**
+     * Returns an events request long enough to be POSTed and gzipped.
+     */
+    private static Request largeEvents(final int i) {
+        final StringBuilder events = new StringBuilder("[{\"key\":\"e\"}");
+        while (events.length() < URLConnectionTransport.GZIP_MIN_BYTES * 4) {
+            events.append(",{\"key\":\"e\"}");
+        }
+        return new Request(Request.Type.EVENTS)
+                .param("app_key", "key")
+                .param("timestamp", 1500000000000L + i)
+                .param("events", ConnectionProcessor.urlEncodeString(events.append(']').toString()));
+    }
+
+    /**
+     * Returns a store with the given number of event requests queued, the first one recorded at 1500000000000.
+     */
+    static LoggingStore newStore(final int requests) {
+        final LoggingStore store = new LoggingStore(new MemoryStorageBackend());
+        for (int i = 0; i < requests; i++) {
+            store.addConnection(new Request(Request.Type.EVENTS)
+                    .param("app_key", "key")
+                    .param("timestamp", 1500000000000L + i)
+                    .param("events", ConnectionProcessor.urlEncodeString("[{\"key\":\"benchmark\",\"count\":1}]")));
+        }
+        return store;
+    }
+
+    private ConnectionProcessor processor(final LoggingStore store, final RetryBackoff backoff) {
+        return new ConnectionProcessor(store, new DeviceId(store, "device"), backoff, new LaneClaims(),
+                new URLConnectionTransport(server.url(), null, null));
+    }
+}
@@ -0,0 +1,197 @@
+package com.kingtalk.logging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EventRingBufferTest {
+    private static final int CAPACITY = 256;
+    // the file starts with a 32 byte header, each record with its 4 byte length and 4 byte CRC32
+    private static final int HEADER_BYTES = 32;
+    private static final int HEAD_OFFSET = 8;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int RECORD_BYTES = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private EventRingBuffer ring;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "events");
+        ring = EventRingBuffer.open(file, CAPACITY);
+    }
+
+    @After
+    public void tearDown() {
+        ring.close();
+    }
+
+    @Test
+    public void recordsWrapAroundTheEnd() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, ring.append(record(i)));
+        }
+        // a fifth record fits neither after the tail nor before the head
+        assertEquals(-1, ring.append(record(4)));
+
+        // the next two go to the start of the data region, right up to the head
+        ring.commit(1);
+        assertEquals(4, ring.append(record(4)));
+        assertEquals(5, ring.append(record(5)));
+        assertEquals(-1, ring.append(record(6)));
+        assertRecords(ring.peek(10), 2, 3, 4, 5);
+
+        reopen();
+        assertRecords(ring.peek(10), 2, 3, 4, 5);
+        assertEquals(4 * RECORD_BYTES, ring.bytes());
+
+        ring.commit(3);
+        assertEquals(6, ring.append(record(6)));
+        assertRecords(ring.peek(10), 4, 5, 6);
+        ring.commit(6);
+        assertEquals(0, ring.size());
+        assertEquals(7, ring.append(record(7)));
+        assertRecords(ring.peek(10), 7);
+    }
+
+    @Test
+    public void removedRecordsAreSkipped() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            ring.append(record(i));
+        }
+        ring.remove(2);
+        ring.remove(2);
+        ring.remove(9);
+        assertEquals(3, ring.size());
+        assertEquals(3 * RECORD_BYTES, ring.bytes());
+        assertRecords(ring.peek(10), 0, 1, 3);
+        assertRecords(ring.peek(2), 0, 1);
+
+        reopen();
+        assertEquals(3, ring.size());
+        assertRecords(ring.peek(10), 0, 1, 3);
+
+        // once the head record goes, the head moves past the removed one behind it as well
+        ring.remove(1);
+        ring.remove(0);
+        assertEquals(1, ring.size());
+        assertRecords(ring.peek(10), 3);
+        assertEquals(3 * (RECORD_HEADER_BYTES + RECORD_BYTES), headerInt(HEAD_OFFSET));
+        assertEquals(4, ring.append(record(4)));
+    }
+
+    @Test
+    public void appendTornBeforeTheHeaderIsDropped() throws Exception {
+        ring.append(record(0));
+        ring.append(record(1));
+        final byte[] header = readHeader();
+        ring.append(record(2));
+        // the process died after writing the record but before updating the header
+        writeHeader(header);
+
+        reopen();
+        assertRecords(ring.peek(10), 0, 1);
+        assertEquals(2, ring.append(record(7)));
+        assertEquals(7, ring.peek(10).get(2).data[0]);
+    }
+
+    @Test
+    public void corruptRecordCutsOffTheRest() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            ring.append(record(i));
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(HEADER_BYTES + 2 * (RECORD_HEADER_BYTES + RECORD_BYTES) + RECORD_HEADER_BYTES + 10);
+            raf.write(0x55);
+        } finally {
+            raf.close();
+        }
+
+        reopen();
+        assertRecords(ring.peek(10), 0, 1);
+        assertEquals(2 * RECORD_BYTES, ring.bytes());
+        assertEquals(2, ring.append(record(2)));
+    }
+
+    @Test
+    public void headOutOfBoundsResetsTheBuffer() throws Exception {
+        ring.append(record(5));
+        final byte[] header = readHeader();
+        header[HEAD_OFFSET] = 0x7F;
+        writeHeader(header);
+
+        reopen();
+        assertEquals(0, ring.size());
+        assertEquals(0, ring.bytes());
+        assertEquals(0, ring.append(record(0)));
+        assertRecords(ring.peek(10), 0);
+    }
+
+    private void reopen() throws Exception {
+        ring.close();
+        ring = EventRingBuffer.open(file, CAPACITY);
+    }
+
+    private byte[] readHeader() throws Exception {
+        final byte[] header = new byte[HEADER_BYTES];
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(header);
+        } finally {
+            raf.close();
+        }
+        return header;
+    }
+
+    private void writeHeader(final byte[] header) throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.write(header);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private int headerInt(final int offset) throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            return raf.readInt();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns a record whose bytes are all the given value.
+     */
+    private static byte[] record(final int value) {
+        final byte[] data = new byte[RECORD_BYTES];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    /**
+     * Checks that the records are the ones with the given sequence IDs, each filled with its ID.
+     */
+    private static void assertRecords(final List<StorageBackend.Record> records, final int... seqs) {
+        assertEquals(seqs.length, records.size());
+        for (int i = 0; i < seqs.length; i++) {
+            assertEquals(seqs[i], records.get(i).seq);
+            assertArrayEquals(record(seqs[i]), records.get(i).data);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.kingtalk.logging;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EvictionPolicyTest {
+    /**
+     * Ranks a record by its first byte.
+     */
+    private static final EvictionPolicy.Prioritizer FIRST_BYTE = new EvictionPolicy.Prioritizer() {
+        @Override
+        public int priority(final byte[] record) {
+            return record[0];
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void dropNewestKeepsWhatIsStored() throws Exception {
+        final StorageBackend.RecordQueue queue = new MemoryStorageBackend().queue("test");
+        final EvictionPolicy policy = new EvictionPolicy(EvictionPolicy.Strategy.DROP_NEWEST, 2);
+        assertEquals(0, policy.offer(queue, record(1, 0)));
+        assertEquals(1, policy.offer(queue, record(1, 1)));
+        assertEquals(-1, policy.offer(queue, record(1, 2)));
+        assertEquals(1, policy.droppedRecords());
+        assertEquals(3, policy.droppedBytes());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void dropOldestMakesRoomForBytes() throws Exception {
+        final StorageBackend.RecordQueue queue = new MemoryStorageBackend().queue("test");
+        final EvictionPolicy policy = new EvictionPolicy(EvictionPolicy.Strategy.DROP_OLDEST, 100, 7);
+        policy.offer(queue, record(1, 0));
+        policy.offer(queue, record(1, 1));
+        policy.offer(queue, new byte[] {1, 2, 3, 4, 5});
+        assertEquals(list(2), tags(queue));
+        assertEquals(2, policy.droppedRecords());
+        assertEquals(6, policy.droppedBytes());
+    }
+
+    @Test
+    public void lowestPriorityIsEvictedOldestFirst() throws Exception {
+        final StorageBackend.RecordQueue queue = new MemoryStorageBackend().queue("test");
+        final EvictionPolicy policy = new EvictionPolicy(EvictionPolicy.Strategy.DROP_LOWEST_PRIORITY, 4, EvictionPolicy.UNLIMITED_BYTES, FIRST_BYTE);
+        policy.offer(queue, record(2, 0));
+        policy.offer(queue, record(1, 1));
+        policy.offer(queue, record(3, 2));
+        policy.offer(queue, record(1, 3));
+
+        policy.offer(queue, record(2, 4));
+        assertEquals(list(0, 2, 3, 4), tags(queue));
+        policy.offer(queue, record(2, 5));
+        assertEquals(list(0, 2, 4, 5), tags(queue));
+        policy.offer(queue, record(3, 6));
+        assertEquals(list(2, 4, 5, 6), tags(queue));
+
+        // lower than everything stored
+        assertEquals(-1, policy.offer(queue, record(1, 7)));
+        assertEquals(list(2, 4, 5, 6), tags(queue));
+        assertEquals(4, policy.droppedRecords());
+    }
+
+    @Test
+    public void recordsRemovedAroundThePolicyAreSkipped() throws Exception {
+        final StorageBackend.RecordQueue queue = new MemoryStorageBackend().queue("test");
+        final EvictionPolicy policy = new EvictionPolicy(EvictionPolicy.Strategy.DROP_LOWEST_PRIORITY, 3, EvictionPolicy.UNLIMITED_BYTES, FIRST_BYTE);
+        policy.offer(queue, record(2, 0));
+        policy.offer(queue, record(1, 1));
+        policy.offer(queue, record(2, 2));
+        // builds the index
+        policy.offer(queue, record(2, 3));
+        assertEquals(list(0, 2, 3), tags(queue));
+
+        // sent, then one added by someone else
+        queue.remove(queue.peek(1).get(0).seq);
+        queue.append(record(2, 8));
+        policy.offer(queue, record(2, 4));
+        assertEquals(list(3, 8, 4), tags(queue));
+
+        // more records than the index knows of, it is built again
+        queue.append(record(0, 9));
+        queue.append(record(0, 10));
+        policy.offer(queue, record(2, 5));
+        assertEquals(list(8, 4, 5), tags(queue));
+        assertEquals(5, policy.droppedRecords());
+    }
+
+    @Test
+    public void fullRingBufferGivesUpItsOldestRecord() throws Exception {
+        final EventRingBuffer ring = EventRingBuffer.open(new File(folder.getRoot(), "events"), 100);
+        try {
+            final EvictionPolicy policy = new EvictionPolicy(EvictionPolicy.Strategy.DROP_LOWEST_PRIORITY, 100, EvictionPolicy.UNLIMITED_BYTES, FIRST_BYTE);
+            assertTrue(policy.offer(ring, large(2, 0)) >= 0);
+            assertTrue(policy.offer(ring, large(1, 1)) >= 0);
+            // evicting the lower ranked record behind the head would not make room
+            assertTrue(policy.offer(ring, large(2, 2)) >= 0);
+            assertEquals(list(1, 2), tags(ring));
+            assertEquals(1, policy.droppedRecords());
+
+            // the oldest record ranks higher than the new one
+            assertEquals(-1, policy.offer(ring, large(0, 3)));
+            assertEquals(list(1, 2), tags(ring));
+        } finally {
+            ring.close();
+        }
+    }
+
+    /**
+     * Returns a record with the given priority, tagged to tell it apart in {@link #tags(StorageBackend.RecordQueue)}.
+     */
+    private static byte[] record(final int priority, final int tag) {
+        return new byte[] {(byte) priority, (byte) tag, 0};
+    }
+
+    private static byte[] large(final int priority, final int tag) {
+        final byte[] record = new byte[30];
+        record[0] = (byte) priority;
+        record[1] = (byte) tag;
+        return record;
+    }
+
+    private static List<Integer> tags(final StorageBackend.RecordQueue queue) throws Exception {
+        final List<Integer> tags = new ArrayList<>();
+        for (StorageBackend.Record record : queue.peek(Integer.MAX_VALUE)) {
+            tags.add(record.data.length > 1 ? (int) record.data[1] : -1);
+        }
+        return tags;
+    }
+
+    private static List<Integer> list(final Integer... values) {
+        final List<Integer> list = new ArrayList<>();
+        for (Integer value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
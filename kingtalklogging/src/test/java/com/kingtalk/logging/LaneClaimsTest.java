@@ -0,0 +1,184 @@
+package com.kingtalk.logging;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LaneClaimsTest {
+    private static final Set<Request.Lane> NONE = Collections.emptySet();
+
+    private LoggingStore store;
+
+    @Before
+    public void setUp() {
+        store = new LoggingStore(new MemoryStorageBackend());
+    }
+
+    @Test
+    public void blockedLaneDoesNotHoldUpOthers() {
+        add(Request.Type.USER_DETAILS, "u1");
+        add(Request.Type.UPDATE_SESSION, "s1");
+        add(Request.Type.USER_DETAILS, "u2");
+        add(Request.Type.CRASH, "c1");
+        add(Request.Type.UPDATE_SESSION, "s2");
+
+        assertEquals(list("u1", "s1", "u2", "c1", "s2"), names(store.nextConnections(NONE, 10)));
+        assertEquals(list("u1", "s1", "u2"), names(store.nextConnections(NONE, 3)));
+        assertEquals(list("s1", "c1", "s2"), names(store.nextConnections(EnumSet.of(Request.Lane.USERS), 10)));
+    }
+
+    @Test
+    public void eventsWaitForAnEarlierSessionBegin() {
+        add(Request.Type.EVENTS, "e1");
+        add(Request.Type.BEGIN_SESSION, "b1");
+        add(Request.Type.EVENTS, "e2");
+        add(Request.Type.CONSENT, "k1");
+
+        assertEquals(list("e1", "k1"), names(store.nextConnections(EnumSet.of(Request.Lane.SESSIONS), 10)));
+        assertEquals(list("e1", "b1", "e2", "k1"), names(store.nextConnections(NONE, 10)));
+    }
+
+    @Test
+    public void deviceIdChangeWaitsForEverythingBeforeIt() {
+        add(Request.Type.USER_DETAILS, "u1");
+        add(Request.Type.CHANGE_DEVICE_ID, "d1");
+        add(Request.Type.UPDATE_SESSION, "s1");
+        add(Request.Type.EVENTS, "e1");
+
+        // the change holds up its lane, events do not wait for it
+        assertEquals(list("e1"), names(store.nextConnections(EnumSet.of(Request.Lane.USERS), 10)));
+        assertEquals(list("u1", "d1", "s1", "e1"), names(store.nextConnections(NONE, 10)));
+    }
+
+    @Test
+    public void delayedRequestHoldsItsLaneUntilDue() {
+        add(Request.Type.UPDATE_SESSION, "s1");
+        add(Request.Type.UPDATE_SESSION, "s2");
+        add(Request.Type.EVENTS, "e1");
+        final long s1 = store.nextConnections(NONE, 1).get(0).seq;
+
+        final long notBefore = System.currentTimeMillis() + 60000;
+        assertTrue(store.delayConnection(s1, notBefore));
+        assertEquals(list("e1"), names(store.nextConnections(NONE, 10)));
+        assertEquals(notBefore, store.nextDelayedConnection());
+
+        // asked again once it is due, the first time is kept
+        assertFalse(store.delayConnection(s1, notBefore + 60000));
+        assertEquals(notBefore, store.nextDelayedConnection());
+
+        store.removeConnection(s1);
+        assertEquals(0, store.nextDelayedConnection());
+        assertEquals(list("s2", "e1"), names(store.nextConnections(NONE, 10)));
+    }
+
+    @Test
+    public void claimedLaneIsLeftToItsProcessor() {
+        final LaneClaims claims = new LaneClaims();
+        add(Request.Type.UPDATE_SESSION, "s1");
+        add(Request.Type.UPDATE_SESSION, "s2");
+        add(Request.Type.EVENTS, "e1");
+
+        claims.workerStarted();
+        claims.workerStarted();
+        final List<Request> first = claims.take(store, 1);
+        final List<Request> second = claims.take(store, 1);
+        assertEquals(list("s1"), names(first));
+        assertEquals(list("e1"), names(second));
+        assertTrue(claims.take(store, 10).isEmpty());
+
+        store.removeConnection(first.get(0).seq);
+        claims.release(first);
+        assertEquals(list("s2"), names(claims.take(store, 10)));
+    }
+
+    @Test
+    public void failedLaneStaysClosedForTheRound() {
+        final LaneClaims claims = new LaneClaims();
+        add(Request.Type.UPDATE_SESSION, "s1");
+        add(Request.Type.EVENTS, "e1");
+
+        claims.workerStarted();
+        final List<Request> session = claims.take(store, 1);
+        claims.failed(session.get(0));
+        claims.release(session);
+        final List<Request> events = claims.take(store, 1);
+        assertEquals(list("e1"), names(events));
+        store.removeConnection(events.get(0).seq);
+        claims.delivered();
+        claims.release(events);
+        assertTrue(claims.take(store, 10).isEmpty());
+
+        // the server took other requests, so the failure counts
+        assertEquals(list("s1"), names(claims.workerFinished()));
+
+        // a new round tries the lane again
+        claims.workerStarted();
+        assertEquals(list("s1"), names(claims.take(store, 10)));
+    }
+
+    @Test
+    public void failureWithoutDeliveryIsNotCounted() {
+        final LaneClaims claims = new LaneClaims();
+        add(Request.Type.UPDATE_SESSION, "s1");
+
+        claims.workerStarted();
+        claims.workerStarted();
+        final List<Request> session = claims.take(store, 1);
+        claims.failed(session.get(0));
+        claims.release(session);
+        // not the last processor of the round
+        assertTrue(claims.workerFinished().isEmpty());
+        // the last one, but the server took nothing
+        assertTrue(claims.workerFinished().isEmpty());
+        assertEquals(0, claims.workers());
+    }
+
+    @Test
+    public void requestIsNotMergedIntoOneBeingSent() {
+        final LaneClaims claims = new LaneClaims();
+        claims.add(store, heartbeat(10));
+        claims.add(store, heartbeat(20));
+        assertEquals(1, store.connectionsCount());
+
+        claims.workerStarted();
+        final List<Request> sending = claims.take(store, 1);
+        assertEquals("30", sending.get(0).param("session_duration"));
+        claims.add(store, heartbeat(5));
+        assertEquals(2, store.connectionsCount());
+
+        store.removeConnection(sending.get(0).seq);
+        claims.release(sending);
+        claims.add(store, heartbeat(7));
+        assertEquals(1, store.connectionsCount());
+        assertEquals("12", store.nextConnections(NONE, 1).get(0).param("session_duration"));
+    }
+
+    private void add(final Request.Type type, final String name) {
+        store.addConnection(new Request(type).param("app_key", "key").param("name", name));
+    }
+
+    private static Request heartbeat(final int duration) {
+        return new Request(Request.Type.UPDATE_SESSION).param("app_key", "key").param("session_duration", duration);
+    }
+
+    private static List<String> names(final List<Request> requests) {
+        final List<String> names = new ArrayList<>();
+        for (Request request : requests) {
+            names.add(request.param("name"));
+        }
+        return names;
+    }
+
+    private static List<String> list(final String... values) {
+        final List<String> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        return list;
+    }
+}
@@ -0,0 +1,156 @@
+package com.kingtalk.logging;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An HTTP server on the loopback interface that stands in for the logging server in tests and
+ * benchmarks, so they run without network.
+ *
+ * Every request is recorded. It is answered with the next scripted response, or with 200 and
+ * {"result":"Success"} once there are none left.
+ */
+class MockServer implements AutoCloseable {
+    static final String SUCCESS = "{\"result\":\"Success\"}";
+
+    static {
+        // the server writes headers and body separately, with Nagle's algorithm every response
+        // would wait for the delayed ACK of the client
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /**
+     * A request the server received.
+     */
+    static final class Received {
+        final String method;
+        final String path;
+        /**
+         * The query for GET requests, the body for POST requests, decompressed if it was gzipped
+         */
+        final String data;
+        final boolean gzipped;
+
+        Received(final String method, final String path, final String data, final boolean gzipped) {
+            this.method = method;
+            this.path = path;
+            this.data = data;
+            this.gzipped = gzipped;
+        }
+    }
+
+    private static final class Scripted {
+        final int code;
+        final String retryAfter;
+        final String body;
+
+        Scripted(final int code, final String retryAfter, final String body) {
+            this.code = code;
+            this.retryAfter = retryAfter;
+            this.body = body;
+        }
+    }
+
+    private final HttpServer server_;
+    private final ExecutorService executor_;
+    private final Deque<Scripted> scripted_ = new ArrayDeque<>();
+    private final List<Received> received_ = new ArrayList<>();
+
+    MockServer() throws IOException {
+        server_ = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor_ = Executors.newFixedThreadPool(Logging.MAX_PARALLEL_REQUESTS);
+        server_.setExecutor(executor_);
+        server_.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                respond(exchange);
+            }
+        });
+        server_.start();
+    }
+
+    /**
+     * Returns the server URL to set up the SDK with, without a trailing slash.
+     */
+    String url() {
+        return "http://127.0.0.1:" + server_.getAddress().getPort();
+    }
+
+    /**
+     * Answers the next request that has no scripted response yet with the given one.
+     * @param retryAfter value of the Retry-After header, null for none
+     */
+    synchronized void enqueue(final int code, final String retryAfter) {
+        scripted_.addLast(new Scripted(code, retryAfter, code < 400 ? SUCCESS : "{\"result\":\"Error\"}"));
+    }
+
+    synchronized List<Received> received() {
+        return new ArrayList<>(received_);
+    }
+
+    synchronized int receivedCount() {
+        return received_.size();
+    }
+
+    @Override
+    public void close() {
+        server_.stop(0);
+        executor_.shutdownNow();
+    }
+
+    private void respond(final HttpExchange exchange) throws IOException {
+        final boolean gzipped = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        final byte[] body = readFully(gzipped ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody());
+        final String data = "POST".equals(exchange.getRequestMethod())
+                ? new String(body, StandardCharsets.UTF_8)
+                : exchange.getRequestURI().getRawQuery();
+
+        final Scripted response;
+        synchronized (this) {
+            received_.add(new Received(exchange.getRequestMethod(), exchange.getRequestURI().getPath(), data, gzipped));
+            response = scripted_.isEmpty() ? new Scripted(200, null, SUCCESS) : scripted_.removeFirst();
+        }
+
+        if (response.retryAfter != null) {
+            exchange.getResponseHeaders().add("Retry-After", response.retryAfter);
+        }
+        final byte[] bytes = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(response.code, bytes.length);
+        final OutputStream os = exchange.getResponseBody();
+        try {
+            os.write(bytes);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static byte[] readFully(final InputStream stream) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int len;
+        try {
+            while ((len = stream.read(buffer)) != -1) {
+                bytes.write(buffer, 0, len);
+            }
+        } finally {
+            stream.close();
+        }
+        return bytes.toByteArray();
+    }
+}
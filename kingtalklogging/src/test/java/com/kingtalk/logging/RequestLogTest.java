@@ -0,0 +1,189 @@
+package com.kingtalk.logging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RequestLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private RequestLog log;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder("log");
+        log = RequestLog.open(dir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        log.close();
+    }
+
+    @Test
+    public void headIsReloadedAfterReopen() throws Exception {
+        assertEquals(0, log.append(bytes("a")));
+        assertEquals(1, log.append(bytes("b")));
+        assertEquals(2, log.append(bytes("c")));
+        log.commit(0);
+
+        reopen();
+        assertRecords(log.peek(10), 1, "b", 2, "c");
+        assertEquals(2, log.size());
+        assertEquals(2, log.bytes());
+        assertEquals(3, log.append(bytes("d")));
+    }
+
+    @Test
+    public void tornTailIsCutOff() throws Exception {
+        log.append(bytes("first"));
+        log.append(bytes("second"));
+        log.append(bytes("third"));
+        final File segment = segments()[0];
+        final long intact = segment.length() - 3;
+        truncate(segment, intact);
+
+        reopen();
+        assertRecords(log.peek(10), 0, "first", 1, "second");
+        assertEquals(intact - 8 - "third".length() + 3, segment.length());
+        assertEquals(2, log.append(bytes("again")));
+        reopen();
+        assertRecords(log.peek(10), 0, "first", 1, "second", 2, "again");
+    }
+
+    @Test
+    public void recordWithBadChecksumIsCutOff() throws Exception {
+        log.append(bytes("first"));
+        log.append(bytes("second"));
+        log.append(bytes("third"));
+        final File segment = segments()[0];
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            // last byte of "second"
+            final long offset = 8 + "first".length() + 8 + "second".length() - 1;
+            file.seek(offset);
+            file.write('X');
+        } finally {
+            file.close();
+        }
+
+        reopen();
+        assertRecords(log.peek(10), 0, "first");
+        assertEquals(1, log.append(bytes("next")));
+    }
+
+    @Test
+    public void tombstonesHideRemovedRecords() throws Exception {
+        for (String data : new String[] {"a", "b", "c", "d"}) {
+            log.append(bytes(data));
+        }
+        log.remove(2);
+        log.remove(7);
+        assertRecords(log.peek(10), 0, "a", 1, "b", 3, "d");
+        assertEquals(3, log.bytes());
+
+        reopen();
+        assertRecords(log.peek(10), 0, "a", 1, "b", 3, "d");
+
+        // removing the oldest record moves the head instead of adding a tombstone
+        log.remove(0);
+        log.commit(1);
+        reopen();
+        assertRecords(log.peek(10), 3, "d");
+        assertEquals(4, log.append(bytes("e")));
+        log.commit(4);
+        assertEquals(0, new File(dir, "removed").length());
+    }
+
+    @Test
+    public void acknowledgedSegmentsAreDeleted() throws Exception {
+        final byte[] large = new byte[RequestLog.SEGMENT_MAX_BYTES / 2 - 100];
+        for (int i = 0; i < 6; i++) {
+            log.append(large);
+        }
+        assertEquals(3, segments().length);
+
+        log.commit(0);
+        assertEquals(3, segments().length);
+        log.commit(1);
+        assertEquals(2, segments().length);
+        assertFalse(new File(dir, "0.seg").exists());
+
+        log.commit(5);
+        assertEquals(0, segments().length);
+        assertEquals(0, log.size());
+        assertEquals(6, log.append(bytes("after")));
+
+        reopen();
+        assertRecords(log.peek(10), 6, "after");
+        assertTrue(new File(dir, "6.seg").exists());
+    }
+
+    @Test
+    public void peekReadsRecordsOfEverySegment() throws Exception {
+        final byte[] large = new byte[RequestLog.SEGMENT_MAX_BYTES - 100];
+        for (int i = 0; i < 4; i++) {
+            large[0] = (byte) i;
+            log.append(large);
+        }
+        for (int round = 0; round < 3; round++) {
+            final List<StorageBackend.Record> records = log.peek(10);
+            assertEquals(4, records.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(i, records.get(i).seq);
+                assertEquals(i, records.get(i).data[0]);
+            }
+        }
+        assertEquals(2, log.peek(2).size());
+    }
+
+    private void reopen() throws Exception {
+        log.close();
+        log = RequestLog.open(dir);
+    }
+
+    private File[] segments() {
+        return dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(".seg");
+            }
+        });
+    }
+
+    private static void truncate(final File file, final long length) throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] bytes(final String data) {
+        return data.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks the sequence IDs and data of the records, given as pairs of ID and data.
+     */
+    private static void assertRecords(final List<StorageBackend.Record> records, final Object... expected) {
+        assertEquals(expected.length / 2, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(((Integer) expected[2 * i]).longValue(), records.get(i).seq);
+            assertEquals(expected[2 * i + 1], new String(records.get(i).data, StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.kingtalk.logging;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RequestTest {
+    private static final String E1 = ConnectionProcessor.urlEncodeString("[{\"key\":\"a\",\"count\":1}]");
+    private static final String E2 = ConnectionProcessor.urlEncodeString("[{\"key\":\"b\",\"count\":2}]");
+    private static final String EMPTY = ConnectionProcessor.urlEncodeString("[]");
+
+    @Test
+    public void heartbeatsSumTheirDurations() {
+        final Request merged = heartbeat(30, 1000).mergedWith(heartbeat(45, 2000));
+        assertNotNull(merged);
+        assertEquals(Request.Type.UPDATE_SESSION, merged.type);
+        assertEquals("75", merged.param("session_duration"));
+        assertEquals("2000", merged.param("timestamp"));
+        assertEquals("app_key=key&timestamp=2000&hour=2000&session_duration=75", merged.encode(null));
+    }
+
+    @Test
+    public void eventBatchesAreJoined() {
+        final Request merged = events(E1, 1000).mergedWith(events(E2, 2000));
+        assertEquals(ConnectionProcessor.urlEncodeString("[{\"key\":\"a\",\"count\":1},{\"key\":\"b\",\"count\":2}]"), merged.param("events"));
+        assertEquals("2000", merged.param("timestamp"));
+
+        assertEquals(E1, events(E1, 1000).mergedWith(events(EMPTY, 2000)).param("events"));
+        assertEquals(E2, events(EMPTY, 1000).mergedWith(events(E2, 2000)).param("events"));
+    }
+
+    @Test
+    public void mergedRequestIsForTheLaterDeviceId() {
+        final Request merged = heartbeat(1, 1000).deviceId("device").mergedWith(heartbeat(2, 2000).deviceId("device"));
+        assertEquals("device", merged.deviceId());
+        assertEquals("app_key=key&timestamp=2000&hour=2000&session_duration=3&device_id=device", merged.encode("other"));
+    }
+
+    @Test
+    public void differentRequestsAreNotMerged() {
+        // other types
+        assertNull(new Request(Request.Type.BEGIN_SESSION).param("app_key", "key")
+                .mergedWith(new Request(Request.Type.BEGIN_SESSION).param("app_key", "key")));
+        assertNull(heartbeat(1, 1000).mergedWith(events(E1, 1000)));
+        // other device IDs
+        assertNull(heartbeat(1, 1000).deviceId("a").mergedWith(heartbeat(1, 2000).deviceId("b")));
+        assertNull(heartbeat(1, 1000).mergedWith(heartbeat(1, 2000).deviceId("b")));
+        // other parameters
+        assertNull(heartbeat(1, 1000).mergedWith(heartbeat(1, 2000).param("app_key", "other")));
+        assertNull(heartbeat(1, 1000).mergedWith(heartbeat(1, 2000).param("location", "1,2")));
+        // values that cannot be merged
+        assertNull(heartbeat(1, 1000).mergedWith(heartbeat(1, 2000).param("session_duration", "x")));
+        assertNull(events(E1, 1000).mergedWith(events("plain", 2000)));
+    }
+
+    @Test
+    public void mergedEventsStayBelowTheLimit() {
+        // just over half the limit once encoded
+        final StringBuilder events = new StringBuilder("[{\"key\":\"a\"}");
+        while (ConnectionProcessor.urlEncodeString(events + "]").length() <= Request.MAX_MERGED_EVENTS_LENGTH / 2) {
+            events.append(",{\"key\":\"a\"}");
+        }
+        final String half = ConnectionProcessor.urlEncodeString(events + "]");
+        assertNull(events(half, 1000).mergedWith(events(half, 2000)));
+        assertNotNull(events(half, 1000).mergedWith(events(E1, 2000)));
+    }
+
+    @Test
+    public void storeReplacesTheLastRequestWithTheMergedOne() {
+        final LoggingStore store = new LoggingStore(new MemoryStorageBackend());
+        store.addConnection(heartbeat(10, 1000), true);
+        store.addConnection(heartbeat(20, 2000), true);
+        assertEquals(1, store.connectionsCount());
+        final Request merged = store.nextConnections(Collections.<Request.Lane>emptySet(), 10).get(0);
+        assertEquals("30", merged.param("session_duration"));
+
+        // sent meanwhile, the next one starts over
+        store.removeConnection(merged.seq);
+        store.addConnection(heartbeat(5, 3000), true);
+        assertEquals(1, store.connectionsCount());
+        assertEquals("5", store.nextConnections(Collections.<Request.Lane>emptySet(), 10).get(0).param("session_duration"));
+
+        // not allowed to merge
+        store.addConnection(heartbeat(7, 4000), false);
+        assertEquals(2, store.connectionsCount());
+    }
+
+    @Test
+    public void mergingIntoAFullQueueEvictsNothing() throws Exception {
+        for (EvictionPolicy.Strategy strategy : EvictionPolicy.Strategy.values()) {
+            final EvictionPolicy policy = new EvictionPolicy(strategy, 3).rankedBy(EvictionPolicy.REQUEST_PRIORITY);
+            final LoggingStore store = new LoggingStore(new MemoryStorageBackend(), policy, policy);
+            store.addConnection(new Request(Request.Type.USER_DETAILS).param("app_key", "key").param("user_details", "1"), true);
+            store.addConnection(new Request(Request.Type.USER_DETAILS).param("app_key", "key").param("user_details", "2"), true);
+            store.addConnection(heartbeat(10, 1000), true);
+            store.addConnection(heartbeat(20, 2000), true);
+
+            final List<Request> queued = store.nextConnections(Collections.<Request.Lane>emptySet(), 10);
+            assertEquals(strategy.name(), 3, queued.size());
+            assertEquals("1", queued.get(0).param("user_details"));
+            assertEquals("2", queued.get(1).param("user_details"));
+            assertEquals(strategy.name(), "30", queued.get(2).param("session_duration"));
+            assertEquals(strategy.name(), 0, policy.droppedRecords());
+            assertEquals(0, store.droppedRequests());
+        }
+    }
+
+    @Test
+    public void mergedRequestThatDoesNotFitKeepsTheEarlierOne() throws Exception {
+        final MemoryStorageBackend probe = new MemoryStorageBackend();
+        new LoggingStore(probe).addConnection(events(E1, 1000));
+        final long bytes = probe.queue(StorageBackend.QUEUE_CONNECTIONS).bytes();
+
+        final EvictionPolicy policy = new EvictionPolicy(EvictionPolicy.Strategy.DROP_NEWEST, 10, bytes + 5);
+        final LoggingStore store = new LoggingStore(new MemoryStorageBackend(), policy, policy);
+        store.addConnection(events(E1, 1000), true);
+        store.addConnection(events(E2, 2000), true);
+
+        final List<Request> queued = store.nextConnections(Collections.<Request.Lane>emptySet(), 10);
+        assertEquals(1, queued.size());
+        assertEquals(E1, queued.get(0).param("events"));
+        assertEquals("1000", queued.get(0).param("timestamp"));
+        assertEquals(1, store.droppedRequests());
+
+        // still the one the next request is merged into
+        store.addConnection(events(EMPTY, 3000), true);
+        assertEquals(1, store.connectionsCount());
+        assertEquals("3000", store.nextConnections(Collections.<Request.Lane>emptySet(), 10).get(0).param("timestamp"));
+    }
+
+    private static Request heartbeat(final int duration, final long timestamp) {
+        return new Request(Request.Type.UPDATE_SESSION)
+                .param("app_key", "key")
+                .param("timestamp", timestamp)
+                .param("hour", timestamp)
+                .param("session_duration", duration);
+    }
+
+    private static Request events(final String events, final long timestamp) {
+        return new Request(Request.Type.EVENTS)
+                .param("app_key", "key")
+                .param("timestamp", timestamp)
+                .param("events", events);
+    }
+}
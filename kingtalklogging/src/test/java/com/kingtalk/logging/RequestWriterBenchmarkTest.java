@@ -0,0 +1,118 @@
+package com.kingtalk.logging;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the bytes allocated per serialized request against the way requests were built
+ * before: string concatenation, URLEncoder and a Calendar per time field. That the results are
+ * the same is checked by {@link RequestWriterTest}.
+ *
+ * Not part of the default test run, see build.gradle.
+ */
+public class RequestWriterBenchmarkTest {
+    private static final int REQUESTS = 20000;
+    private static final String DEVICE_ID = "3f2a9c1e-7b4d-4e0a-9d6f-5c8b1a2e4f60";
+    private static final String EVENTS = RequestWriterTest.EVENTS;
+
+    @Test
+    public void serializationAllocatesLess() throws Exception {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final long thread = Thread.currentThread().getId();
+
+        // warm up both paths so that the measured runs are compiled
+        int sink = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            sink += legacyRequest(i).length() + request(i).length();
+        }
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < REQUESTS; i++) {
+            sink += legacyRequest(i).length();
+        }
+        final long legacy = (threads.getThreadAllocatedBytes(thread) - before) / REQUESTS;
+
+        before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < REQUESTS; i++) {
+            sink += request(i).length();
+        }
+        final long writer = (threads.getThreadAllocatedBytes(thread) - before) / REQUESTS;
+
+        before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < REQUESTS; i++) {
+            sink += URLEncoder.encode(EVENTS, "UTF-8").length();
+        }
+        final long legacyEncode = (threads.getThreadAllocatedBytes(thread) - before) / REQUESTS;
+
+        before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < REQUESTS; i++) {
+            sink += RequestWriter.urlEncode(EVENTS).length();
+        }
+        final long writerEncode = (threads.getThreadAllocatedBytes(thread) - before) / REQUESTS;
+
+        before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < REQUESTS; i++) {
+            sink += Calendar.getInstance().get(Calendar.HOUR_OF_DAY) + Calendar.getInstance().get(Calendar.DAY_OF_WEEK)
+                    + TimeZone.getDefault().getOffset(new Date().getTime()) / 60000;
+        }
+        final long legacyTime = (threads.getThreadAllocatedBytes(thread) - before) / REQUESTS;
+
+        before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < REQUESTS; i++) {
+            sink += Logging.currentHour() + Logging.currentDayOfWeek() + DeviceInfo.getTimezoneOffset();
+        }
+        final long writerTime = (threads.getThreadAllocatedBytes(thread) - before) / REQUESTS;
+
+        assertTrue(sink != 0);
+        assertEquals(legacyRequest(7), request(7));
+        assertTrue("bytes per request: concatenation " + legacy + ", request writer " + writer, writer < legacy);
+        assertTrue("bytes per events encoding: URLEncoder " + legacyEncode + ", request writer " + writerEncode, writerEncode * 2 < legacyEncode);
+        assertTrue("bytes per hour, day and offset: Calendar " + legacyTime + ", request writer " + writerTime, writerTime * 10 < legacyTime);
+    }
+
+    /**
+     * An events request as it was serialized before RequestWriter.
+     */
+    private static String legacyRequest(final int i) throws Exception {
+        final int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+        final int dow = Calendar.getInstance().get(Calendar.DAY_OF_WEEK) - 1;
+        final int tz = TimeZone.getDefault().getOffset(new Date().getTime()) / 60000;
+        return "app_key=" + "a1b2c3d4e5f6"
+                + "&timestamp=" + (1500000000000L + i)
+                + "&hour=" + hour
+                + "&dow=" + dow
+                + "&tz=" + tz
+                + "&sdk_version=" + Logging.KING_TALK_LOGGING_SDK_VERSION_STRING
+                + "&sdk_name=" + Logging.LOGGING_SDK_NAME
+                + "&events=" + URLEncoder.encode(EVENTS, "UTF-8")
+                + "&device_id=" + URLEncoder.encode(DEVICE_ID, "UTF-8");
+    }
+
+    /**
+     * The same request built and encoded the way ConnectionQueue and ConnectionProcessor do.
+     */
+    private static String request(final int i) {
+        return new Request(Request.Type.EVENTS)
+                .param("app_key", "a1b2c3d4e5f6")
+                .param("timestamp", 1500000000000L + i)
+                .param("hour", Logging.currentHour())
+                .param("dow", Logging.currentDayOfWeek())
+                .param("tz", DeviceInfo.getTimezoneOffset())
+                .param("sdk_version", Logging.KING_TALK_LOGGING_SDK_VERSION_STRING)
+                .param("sdk_name", Logging.LOGGING_SDK_NAME)
+                .param("events", ConnectionProcessor.urlEncodeString(EVENTS))
+                .encode(DEVICE_ID);
+    }
+}
@@ -0,0 +1,62 @@
+package com.kingtalk.logging;
+
+import org.junit.Test;
+
+import java.net.URLEncoder;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that RequestWriter encodes and computes local time exactly like URLEncoder and Calendar.
+ */
+public class RequestWriterTest {
+    static final String EVENTS = "[{\"key\":\"purchase\",\"count\":1,\"sum\":9.99,\"segmentation\":{\"item\":\"\u00c9p\u00e9e \u00e0 deux mains\",\"shop\":\"\u6771\u4eac\"},"
+            + "\"timestamp\":1500000000000,\"hour\":13,\"dow\":3}]";
+    private static final String[] ZONES = {"UTC", "Europe/Berlin", "America/New_York", "America/St_Johns", "Asia/Kolkata",
+            "Australia/Lord_Howe", "Pacific/Chatham", "Pacific/Kiritimati"};
+
+    @Test
+    public void urlEncodeMatchesURLEncoder() throws Exception {
+        final Random random = new Random(42);
+        final char[] alphabet = "aZ09.-*_ ~!'()&=+%/?#[]{}\"\\\n\u00e9\u00df\u07ff\u0800\u6771\uffff\ud83d\ude00\ud800\udc00".toCharArray();
+        for (int i = 0; i < 5000; i++) {
+            final char[] value = new char[random.nextInt(24)];
+            for (int j = 0; j < value.length; j++) {
+                value[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            final String string = new String(value);
+            assertEquals(URLEncoder.encode(string, "UTF-8"), RequestWriter.urlEncode(string));
+        }
+        assertEquals(URLEncoder.encode(EVENTS, "UTF-8"), RequestWriter.urlEncode(EVENTS));
+        final String plain = "device_1.2-3*4";
+        assertSame(plain, RequestWriter.urlEncode(plain));
+    }
+
+    @Test
+    public void timeMathMatchesCalendar() {
+        final TimeZone defaultZone = TimeZone.getDefault();
+        final Random random = new Random(42);
+        try {
+            for (String zone : ZONES) {
+                TimeZone.setDefault(TimeZone.getTimeZone(zone));
+                for (int i = 0; i < 2000; i++) {
+                    // 1990 to 2040, on and around whole hours to hit daylight saving switches
+                    long time = 631152000000L + (long) (random.nextDouble() * 1577836800000L);
+                    if (i % 2 == 0) {
+                        time = time - time % (15 * 60 * 1000) + random.nextInt(3) * 1000 - 1000;
+                    }
+                    final Calendar calendar = Calendar.getInstance();
+                    calendar.setTimeInMillis(time);
+                    assertEquals(zone + " " + time, calendar.get(Calendar.HOUR_OF_DAY), RequestWriter.hourOfDay(time));
+                    assertEquals(zone + " " + time, calendar.get(Calendar.DAY_OF_WEEK) - 1, RequestWriter.dayOfWeek(time));
+                    assertEquals(zone + " " + time, TimeZone.getDefault().getOffset(time) / 60000, RequestWriter.timezoneOffsetMinutes(time));
+                }
+            }
+        } finally {
+            TimeZone.setDefault(defaultZone);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.kingtalk.logging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RetryBackoffTest {
+    private static final long NOW = 1500000000000L;
+
+    /**
+     * Always picks the given fraction of the ceiling.
+     */
+    private static Random fixed(final double fraction) {
+        return new Random() {
+            @Override
+            public double nextDouble() {
+                return fraction;
+            }
+        };
+    }
+
+    @Test
+    public void ceilingDoublesUpToTheMaximum() {
+        final RetryBackoff backoff = new RetryBackoff(fixed(0.5));
+        final long[] expected = {2500, 5000, 10000, 20000, 40000, 80000, 160000, 300000, 300000};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], backoff.failed(0, NOW));
+        }
+        // far past the point where the shift would overflow
+        for (int i = 0; i < 100; i++) {
+            assertEquals(RetryBackoff.MAX_DELAY_MS / 2, backoff.failed(0, NOW));
+        }
+        assertEquals(expected.length + 100, backoff.failures());
+    }
+
+    @Test
+    public void attemptWaitsForTheDelay() {
+        final RetryBackoff backoff = new RetryBackoff(fixed(0.5));
+        assertTrue(backoff.canAttempt(NOW));
+        backoff.failed(0, NOW);
+        assertFalse(backoff.canAttempt(NOW + 2499));
+        assertTrue(backoff.canAttempt(NOW + 2500));
+
+        backoff.succeeded();
+        assertEquals(0, backoff.failures());
+        assertTrue(backoff.canAttempt(NOW));
+        // the ceiling starts over
+        assertEquals(2500, backoff.failed(0, NOW));
+    }
+
+    @Test
+    public void longerRetryAfterWins() {
+        final RetryBackoff backoff = new RetryBackoff(fixed(0.5));
+        assertEquals(7000, backoff.failed(7000, NOW));
+        // shorter than the random wait
+        assertEquals(5000, backoff.failed(1000, NOW));
+        assertEquals(RetryBackoff.MAX_RETRY_AFTER_MS, backoff.failed(24 * RetryBackoff.MAX_RETRY_AFTER_MS, NOW));
+    }
+
+    @Test
+    public void listenerHearsAboutRetriesAndRecovery() {
+        final List<String> calls = new ArrayList<>();
+        final RetryBackoff backoff = new RetryBackoff(fixed(0));
+        backoff.setListener(new RetryListener() {
+            @Override
+            public void onRetryScheduled(final int consecutiveFailures, final long delayMs) {
+                calls.add("retry " + consecutiveFailures + " " + delayMs);
+            }
+
+            @Override
+            public void onRecovered(final int consecutiveFailures) {
+                calls.add("recovered " + consecutiveFailures);
+            }
+        });
+        backoff.succeeded();
+        backoff.failed(0, NOW);
+        backoff.failed(3000, NOW);
+        backoff.succeeded();
+        backoff.succeeded();
+
+        final List<String> expected = new ArrayList<>();
+        expected.add("retry 1 0");
+        expected.add("retry 2 3000");
+        expected.add("recovered 2");
+        assertEquals(expected, calls);
+    }
+
+    @Test
+    public void retryAfterIsReadAsSecondsOrDate() {
+        assertEquals(120000, RetryBackoff.parseRetryAfter(" 120 ", NOW));
+        assertEquals(0, RetryBackoff.parseRetryAfter("-5", NOW));
+        assertEquals(0, RetryBackoff.parseRetryAfter(null, NOW));
+        assertEquals(0, RetryBackoff.parseRetryAfter("", NOW));
+        assertEquals(0, RetryBackoff.parseRetryAfter("soon", NOW));
+
+        // 1500000000000 is Fri, 14 Jul 2017 02:40:00 GMT
+        assertEquals(90000, RetryBackoff.parseRetryAfter("Fri, 14 Jul 2017 02:41:30 GMT", NOW));
+        assertEquals(0, RetryBackoff.parseRetryAfter("Fri, 14 Jul 2017 02:39:00 GMT", NOW));
+    }
+}
@@ -0,0 +1,51 @@
+package com.kingtalk.logging;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how many bytes FileStorageBackend writes for frequent location updates next to a
+ * large remote config. Before the values were split into hot and cold partitions every update
+ * rewrote the single snapshot holding both.
+ */
+public class StoragePartitionTest {
+    private static final int REMOTE_CONFIG_BYTES = 100 * 1024;
+    private static final int UPDATES = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void hotUpdatesDoNotRewriteColdValues() throws Exception {
+        final File dir = folder.newFolder("store");
+        final FileStorageBackend backend = new FileStorageBackend(dir);
+
+        final StringBuilder remoteConfig = new StringBuilder(REMOTE_CONFIG_BYTES);
+        while (remoteConfig.length() < REMOTE_CONFIG_BYTES) {
+            remoteConfig.append("{\"key\":\"value\"},");
+        }
+        backend.apply(Collections.<String, Object>singletonMap("REMOTE_CONFIG", remoteConfig.toString()));
+        backend.apply(Collections.<String, Object>singletonMap("com.kingtalk.logging.DeviceId.id", "device"));
+
+        final long coldBytes = new File(dir, "values").length();
+        final long start = backend.bytesWritten();
+        for (int i = 0; i < UPDATES; i++) {
+            backend.apply(Collections.<String, Object>singletonMap(LoggingStore.LOCATION_PREFERENCE, "52.5," + i));
+        }
+        final long partitioned = backend.bytesWritten() - start;
+        final long hotBytes = new File(dir, "values.hot").length();
+        // a single snapshot file would have held the cold values on every write as well
+        final long singleFile = UPDATES * (coldBytes + hotBytes);
+
+        assertEquals(coldBytes, new File(dir, "values").length());
+        assertTrue("bytes written: single file " + singleFile + ", partitioned " + partitioned, partitioned * 100 < singleFile);
+        assertEquals("52.5," + (UPDATES - 1), new FileStorageBackend(dir).getString(LoggingStore.LOCATION_PREFERENCE, null));
+        assertEquals(remoteConfig.toString(), new FileStorageBackend(dir).getString("REMOTE_CONFIG", null));
+    }
+}
@@ -0,0 +1,102 @@
+package com.kingtalk.logging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures upload throughput and latency of URLConnectionTransport and ConnectionProcessor
+ * against a {@link MockServer} on the loopback interface. Needs no network.
+ *
+ * Not part of the default test run, see build.gradle.
+ */
+public class TransportBenchmarkTest {
+    private static final int REQUESTS = 300;
+    private static final int WARM_UP = 20;
+
+    /**
+     * Requests over loopback that a kept-alive connection sustains at least
+     */
+    private static final long MIN_REQUESTS_PER_SECOND = 100;
+
+    private MockServer server;
+    private boolean bulkModeEnabled;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockServer();
+        ConnectionProcessor.salt = null;
+        bulkModeEnabled = Logging.sharedInstance().isBulkModeEnabled();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        Logging.sharedInstance().setBulkModeEnabled(bulkModeEnabled);
+    }
+
+    @Test
+    public void transportUploadThroughputAndLatency() throws Exception {
+        final Transport transport = new URLConnectionTransport(server.url(), null, null);
+        for (int i = 0; i < WARM_UP; i++) {
+            transport.send(new Transport.Call("/i?", "app_key=key&warm_up=" + i));
+        }
+
+        final long[] latencies = new long[REQUESTS];
+        final long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            final long sent = System.nanoTime();
+            final Transport.Response response = transport.send(new Transport.Call("/i?", "app_key=key&timestamp=" + i + "&device_id=device"));
+            latencies[i] = System.nanoTime() - sent;
+            assertEquals(200, response.code);
+            assertEquals(MockServer.SUCCESS, response.bodyString());
+        }
+        final long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+
+        final long requestsPerSecond = REQUESTS * TimeUnit.SECONDS.toNanos(1) / Math.max(1, elapsed);
+        final long p50 = latencies[REQUESTS / 2];
+        final long p99 = latencies[REQUESTS * 99 / 100];
+        assertTrue(requestsPerSecond + " requests/s", requestsPerSecond >= MIN_REQUESTS_PER_SECOND);
+        assertTrue("p50 " + p50 + " ns, p99 " + p99 + " ns", p99 < TimeUnit.SECONDS.toNanos(1));
+
+        final List<MockServer.Received> received = server.received();
+        assertEquals(WARM_UP + REQUESTS, received.size());
+        final MockServer.Received last = received.get(received.size() - 1);
+        assertEquals("GET", last.method);
+        assertEquals("/i", last.path);
+        assertTrue(last.data.startsWith("app_key=key&timestamp=" + (REQUESTS - 1) + "&device_id=device&checksum="));
+    }
+
+    @Test
+    public void bulkDrainsQueueFasterThanSingleRequests() {
+        final long single = drain(false);
+        assertEquals(REQUESTS, server.receivedCount());
+
+        final long bulk = drain(true);
+        assertEquals(REQUESTS + (REQUESTS + ConnectionProcessor.BULK_MAX_REQUESTS - 1) / ConnectionProcessor.BULK_MAX_REQUESTS, server.receivedCount());
+        assertTrue("single " + single + " ns, bulk " + bulk + " ns", bulk < single);
+    }
+
+    /**
+     * Sends a queue of {@link #REQUESTS} requests with one processor.
+     * @return how long that took in nanoseconds
+     */
+    private long drain(final boolean bulk) {
+        Logging.sharedInstance().setBulkModeEnabled(bulk);
+        final LoggingStore store = ConnectionProcessorTest.newStore(REQUESTS);
+        final long start = System.nanoTime();
+        new ConnectionProcessor(store, new DeviceId(store, "device"), new RetryBackoff(new Random(0)), new LaneClaims(),
+                new URLConnectionTransport(server.url(), null, null)).run();
+        final long elapsed = System.nanoTime() - start;
+        assertTrue(store.isEmptyConnections());
+        return elapsed;
+    }
+}
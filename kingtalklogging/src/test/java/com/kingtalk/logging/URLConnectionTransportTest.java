@@ -0,0 +1,119 @@
+package com.kingtalk.logging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class URLConnectionTransportTest {
+    private MockServer server;
+    private Transport transport;
+    private boolean gzipEnabled;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockServer();
+        gzipEnabled = Logging.sharedInstance().isGzipEnabled();
+        transport = new URLConnectionTransport(server.url(), null, null);
+        ConnectionProcessor.salt = "salt";
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        ConnectionProcessor.salt = null;
+        Logging.sharedInstance().setGzipEnabled(gzipEnabled);
+    }
+
+    @Test
+    public void shortRequestGoesInTheUrl() throws Exception {
+        final String data = "app_key=key&timestamp=1&device_id=device";
+        assertEquals(200, transport.send(new Transport.Call("/i?", new StringBuilder(data))).code);
+
+        final MockServer.Received received = single();
+        assertEquals("GET", received.method);
+        assertEquals(data + "&checksum=" + sha1(data + "salt"), received.data);
+    }
+
+    @Test
+    public void postBodyIsStreamedWithItsChecksum() throws Exception {
+        // longer than the chunk the body is written through
+        final StringBuilder data = events(20000);
+        assertEquals(200, transport.send(new Transport.Call("/i?", data, "", true)).code);
+
+        final MockServer.Received received = single();
+        assertEquals("POST", received.method);
+        assertEquals(data + "&checksum=" + sha1(data + "salt"), received.data);
+    }
+
+    @Test
+    public void gzippedBodyHasTheChecksumOfThePlainOne() throws Exception {
+        Logging.sharedInstance().setGzipEnabled(true);
+        final StringBuilder data = events(20000);
+        assertEquals(200, transport.send(new Transport.Call("/i?", data, "", true)).code);
+        final MockServer.Received received = single();
+        assertTrue(received.gzipped);
+        assertEquals(data + "&checksum=" + sha1(data + "salt"), received.data);
+    }
+
+    @Test
+    public void gzippedBodyIsResentPlainOnlyWhenUnsupported() throws Exception {
+        Logging.sharedInstance().setGzipEnabled(true);
+        final StringBuilder data = events(4000);
+        final long requestsBefore = ConnectionStats.requests();
+
+        // a bad request says nothing about gzip
+        server.enqueue(400, null);
+        assertEquals(400, transport.send(new Transport.Call("/i?", data, "", true)).code);
+        assertEquals(200, transport.send(new Transport.Call("/i?", data, "", true)).code);
+
+        server.enqueue(415, null);
+        assertEquals(200, transport.send(new Transport.Call("/i?", data, "", true)).code);
+        // remembered by this transport only
+        assertEquals(200, transport.send(new Transport.Call("/i?", data, "", true)).code);
+        assertEquals(200, new URLConnectionTransport(server.url(), null, null).send(new Transport.Call("/i?", data, "", true)).code);
+
+        final List<MockServer.Received> received = server.received();
+        assertEquals(6, received.size());
+        final boolean[] gzipped = {true, true, true, false, false, true};
+        for (int i = 0; i < received.size(); i++) {
+            assertEquals(gzipped[i], received.get(i).gzipped);
+            assertEquals(data + "&checksum=" + sha1(data + "salt"), received.get(i).data);
+        }
+        assertEquals(5, ConnectionStats.requests() - requestsBefore);
+    }
+
+    @Test
+    public void bodyThatIsNotUrlEncodedIsSentAsUtf8() throws Exception {
+        final String data = "app_key=key&name=caf\u00e9\ud83d\ude00";
+        assertEquals(200, transport.send(new Transport.Call("/i?", data, "", true)).code);
+        assertEquals(data + "&checksum=" + sha1(data + "salt"), single().data);
+    }
+
+    private MockServer.Received single() {
+        final List<MockServer.Received> received = server.received();
+        assertEquals(1, received.size());
+        return received.get(0);
+    }
+
+    private static StringBuilder events(final int length) {
+        final StringBuilder data = new StringBuilder("app_key=key&events=");
+        for (int i = 0; data.length() < length; i++) {
+            data.append("%7B%22key%22%3A%22e").append(i).append("%22%7D");
+        }
+        return data;
+    }
+
+    private static String sha1(final String value) throws Exception {
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}